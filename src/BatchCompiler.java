@@ -0,0 +1,274 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Programmatic entry point for compiling many Jack classes in-process. Every source is compiled
+ * independently, so one bad file only shows up in its own {@link Result}.
+ */
+public class BatchCompiler implements AutoCloseable {
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final CompilerOptions options;
+
+    public BatchCompiler(int parallelism) {
+        this(parallelism, new CompilerOptions());
+    }
+
+    public BatchCompiler(int parallelism, CompilerOptions options) {
+        this.executor = Executors.newFixedThreadPool(parallelism);
+        this.ownsExecutor = true;
+        this.options = options;
+    }
+
+    public BatchCompiler(ExecutorService executor) {
+        this(executor, new CompilerOptions());
+    }
+
+    public BatchCompiler(ExecutorService executor, CompilerOptions options) {
+        // the caller keeps ownership of the executor and has to shut it down
+        this.executor = executor;
+        this.ownsExecutor = false;
+        this.options = options;
+    }
+
+    public Batch submit(List<Source> sources) {
+        // whole-program passes work on .vm text, so assembly is only generated once they are done
+        CompilerOptions fileOptions = new CompilerOptions(options);
+        if (options.isInline()) {
+            fileOptions.setAsm(false);
+        }
+        List<Future<Result>> futures = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            futures.add(executor.submit(() -> compile(source, fileOptions)));
+        }
+        return new Batch(sources, futures, options);
+    }
+
+    public List<Result> compile(List<Source> sources) throws InterruptedException {
+        return submit(sources).await();
+    }
+
+    public static Result compile(Source source) {
+        return compile(source, new CompilerOptions());
+    }
+
+    public static Result compile(Source source, CompilerOptions options) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        String sourceMap = null;
+        String output = null;
+        try (InputStream inputStream = source.open()) {
+            // the optimizations work on .vm text, so assembly is generated after them
+            boolean optimize = options.isPropagateConstants() || options.isOptimizeLoops()
+                    || options.isEliminateSubexpressions();
+            CompilerOptions engineOptions = new CompilerOptions(options);
+            if (optimize) {
+                engineOptions.setAsm(false);
+            }
+            CompilationEngine engine = new CompilationEngine(source.name(), inputStream, outputStream, engineOptions);
+            engine.compileClass();
+            diagnostics.addAll(engine.getDiagnostics());
+            if (optimize && diagnostics.isEmpty()) {
+                output = outputStream.toString();
+                // constants first, so the loop optimizer sees what they leave invariant
+                if (options.isPropagateConstants()) {
+                    output = ConstantPropagator.optimize(output, engine.getSourceMap());
+                }
+                if (options.isOptimizeLoops()) {
+                    output = LoopOptimizer.optimize(output, engine.getSourceMap(), options.getProfile());
+                }
+                // after hoisting, on what is left in the loops
+                if (options.isEliminateSubexpressions()) {
+                    output = SubexpressionEliminator.optimize(output, engine.getSourceMap());
+                }
+                if (options.isAsm()) {
+                    output = toAsm(source.name(), output);
+                }
+            }
+            if (engine.getSourceMap() != null) {
+                sourceMap = engine.getSourceMap().toString();
+            }
+        } catch (IOException e) {
+            diagnostics.add(new Diagnostic(source.name(), 0, 0, "I/O error: " + e.getMessage()));
+        } catch (RuntimeException e) {
+            diagnostics.add(new Diagnostic(source.name(), 0, 0, String.valueOf(e.getMessage())));
+        }
+        return new Result(source.name(), output == null ? outputStream.toString() : output, sourceMap, diagnostics);
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A Jack class to compile. {@link #name()} is the class name, which is also the base name of the .vm output.
+     * A source can also be a precompiled .vm class to link, like the OS.
+     */
+    public interface Source {
+        String name();
+
+        InputStream open() throws IOException;
+
+        static Source of(String name, String code) {
+            return of(name, code.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Source of(String name, byte[] bytes) {
+            return new Source() {
+                public String name() {
+                    return name;
+                }
+
+                public InputStream open() {
+                    return new ByteArrayInputStream(bytes);
+                }
+            };
+        }
+
+        static Source of(Path path) {
+            String name = baseName(path.getFileName().toString());
+            return new Source() {
+                public String name() {
+                    return name;
+                }
+
+                public InputStream open() throws IOException {
+                    return Files.newInputStream(path);
+                }
+            };
+        }
+
+        /**
+         * An entry of an open archive, read straight from it. The archive must stay open until the source is compiled.
+         */
+        static Source of(ZipFile archive, ZipEntry entry) {
+            String entryName = entry.getName();
+            String name = baseName(entryName.substring(entryName.lastIndexOf('/') + 1));
+            return new Source() {
+                public String name() {
+                    return name;
+                }
+
+                public InputStream open() throws IOException {
+                    return archive.getInputStream(entry);
+                }
+            };
+        }
+
+        // the file name without its .jack or .vm extension
+        private static String baseName(String fileName) {
+            for (String extension : new String[]{".jack", ".vm"}) {
+                if (fileName.endsWith(extension)) {
+                    return fileName.substring(0, fileName.length() - extension.length());
+                }
+            }
+            return fileName;
+        }
+    }
+
+    /**
+     * {@code sourceMap} is the text form of the {@link SourceMap}, or null when source maps are disabled.
+     */
+    public record Result(String name, String output, String sourceMap, List<Diagnostic> diagnostics) {
+        public boolean isSuccess() {
+            return diagnostics.isEmpty();
+        }
+    }
+
+    /**
+     * Handle on a submitted batch. Results come back in the order the sources were submitted.
+     */
+    public static final class Batch {
+        private final List<Source> sources;
+        private final List<Future<Result>> futures;
+        private final CompilerOptions options;
+
+        private Batch(List<Source> sources, List<Future<Result>> futures, CompilerOptions options) {
+            this.sources = sources;
+            this.futures = futures;
+            this.options = options;
+        }
+
+        /**
+         * Cancels every file that has not started compiling yet. Files already being compiled run to completion.
+         */
+        public void cancel() {
+            for (Future<Result> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        public boolean isDone() {
+            return futures.stream().allMatch(Future::isDone);
+        }
+
+        public List<Result> await() throws InterruptedException {
+            List<Result> results = new ArrayList<>(futures.size());
+            for (int i = 0; i < futures.size(); i++) {
+                String name = sources.get(i).name();
+                try {
+                    results.add(futures.get(i).get());
+                } catch (CancellationException e) {
+                    results.add(new Result(name, "", null, List.of(new Diagnostic(name, 0, 0, "cancelled"))));
+                } catch (ExecutionException e) {
+                    results.add(new Result(name, "", null, List.of(new Diagnostic(name, 0, 0, String.valueOf(e.getCause())))));
+                }
+            }
+            return options.isInline() ? inline(results) : results;
+        }
+
+        private List<Result> inline(List<Result> results) {
+            Inliner inliner = new Inliner(options.getInlineMaxInstructions(), options.getProfile());
+            for (Result result : results) {
+                if (result.isSuccess()) {
+                    inliner.collect(result.name(), result.output());
+                }
+            }
+            List<Result> inlined = new ArrayList<>(results.size());
+            for (Result result : results) {
+                if (!result.isSuccess()) {
+                    inlined.add(result);
+                    continue;
+                }
+                SourceMap sourceMap = result.sourceMap() == null ? null : SourceMap.parse(result.sourceMap());
+                String output = inliner.inline(result.name(), result.output(), sourceMap);
+                if (options.isAsm()) {
+                    output = toAsm(result.name(), output);
+                }
+                inlined.add(new Result(result.name(), output, sourceMap == null ? null : sourceMap.toString(),
+                        result.diagnostics()));
+            }
+            return inlined;
+        }
+    }
+
+    private static String toAsm(String name, String vmCode) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            new HackAsmWriter(outputStream, name).writeVM(new StringReader(vmCode));
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toString();
+    }
+}
@@ -1,8 +1,16 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Serial;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 public class CompilationEngine {
+    // names the input in diagnostics and --asm labels when the caller does not
+    private static final String DEFAULT_SOURCE_NAME = "input";
+
     private final JackTokenizer tokenizer;
     private final VMWriter vmWriter;
     private final SymbolTable classSymbolTable;
@@ -11,20 +19,78 @@ public class CompilationEngine {
     private JackTokenizer.Keyword subroutineType;
     private String className;
     private JackTokenizer.Keyword subroutineReturnType;
+    private final String sourceName;
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    // set once the end of the input has been reported, nothing after it can be compiled
+    private boolean endOfInput = false;
+    private final SourceMap sourceMap;
+    private final CompilerOptions options;
 
     public CompilationEngine(InputStream is, OutputStream os) {
+        this(DEFAULT_SOURCE_NAME, is, os);
+    }
+
+    public CompilationEngine(String sourceName, InputStream is, OutputStream os) {
+        this(sourceName, is, os, new CompilerOptions());
+    }
+
+    public CompilationEngine(String sourceName, InputStream is, OutputStream os, CompilerOptions options) {
         // Initialize the tokenizer and VMWriter
+        this.sourceName = sourceName;
+        this.options = options;
+        CompilerEvents.Tokenize tokenize = new CompilerEvents.Tokenize();
+        tokenize.begin();
         this.tokenizer = new JackTokenizer(is);
-        this.vmWriter = new VMWriter(os);
+        if (tokenize.shouldCommit()) {
+            tokenize.source = sourceName;
+            tokenize.tokens = tokenizer.tokenCount();
+            tokenize.commit();
+        }
+        for (JackTokenizer.Problem problem : tokenizer.problems()) {
+            diagnostics.add(new Diagnostic(sourceName, JackTokenizer.lineOf(problem.position()),
+                    JackTokenizer.columnOf(problem.position()), problem.message()));
+        }
+        this.vmWriter = options.isAsm() ? new HackAsmWriter(os, sourceName) : new VMWriter(os);
+        if (options.isSourceMap()) {
+            this.sourceMap = new SourceMap();
+            // instructions are attributed to the line of the token being looked at when they are written
+            this.vmWriter.setSourceMap(this.sourceMap, this.tokenizer::line);
+        } else {
+            this.sourceMap = null;
+        }
 
         this.classSymbolTable = new SymbolTable();
         this.subroutineSymbolTable = new SymbolTable();
     }
 
+    /**
+     * Syntax errors do not stop compilation: they are recorded in {@link #getDiagnostics()} and the engine
+     * resynchronizes at the next statement or class member, so one run reports every error in the class.
+     * The output stream receives the compiled class when this returns.
+     */
     public void compileClass() throws IOException {
-        // Create the class element
-        tokenizer.advance();
-        if (tokenizer.keyWord() == JackTokenizer.Keyword.CLASS) {
+        CompilerEvents.CompileClass event = new CompilerEvents.CompileClass();
+        event.begin();
+        try {
+            compileClassMembers();
+        } finally {
+            flush();
+            if (event.shouldCommit()) {
+                event.className = className;
+                event.tokens = tokenizer.tokensRead();
+                event.instructions = vmWriter.getInstructionCount();
+                event.commit();
+            }
+        }
+    }
+
+    private void compileClassMembers() throws IOException {
+        try {
+            // Create the class element
+            tokenizer.advance();
+            if (tokenizer.keyWord() != JackTokenizer.Keyword.CLASS) {
+                throw new IllegalStateException("Current token is not a class");
+            }
             // Create the 'class' keyword element
             tokenizer.advance();
 
@@ -42,8 +108,22 @@ public class CompilationEngine {
 
             // dequeue '{'
             tokenizer.advance();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // without a class header there is nothing to resynchronize on
+            reportError(e);
+            return;
+        }
 
-            while (tokenizer.hasMoreTokens()) {
+        while (!endOfInput) {
+            if (!tokenizer.hasMoreTokens()) {
+                // the last token must close the class
+                if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != '}') {
+                    reportError(new JackTokenizer.EndOfInput());
+                }
+                break;
+            }
+            int start = tokenizer.tokensRead();
+            try {
                 if (tokenizer.tokenType() == JackTokenizer.TokenType.KEYWORD) {
                     switch (tokenizer.keyWord()) {
                         case STATIC, FIELD -> compileClassVarDec();
@@ -51,14 +131,42 @@ public class CompilationEngine {
                         default ->
                                 throw new IllegalStateException("Class expected a keyword but found " + tokenizer.keyWord());
                     }
+                } else {
+                    throw new IllegalStateException("Class expected a keyword but found " + tokenizer.tokenType());
                 }
+            } catch (Resynchronize e) {
+                // already reported by the statement that failed
+                synchronizeClassMember(start);
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                reportError(e);
+                synchronizeClassMember(start);
             }
-        } else {
-            throw new IllegalStateException("Current token is not a class");
         }
         // dequeueing '}' is not needed
     }
 
+    private void flush() throws IOException {
+        CompilerEvents.Flush event = new CompilerEvents.Flush();
+        event.begin();
+        vmWriter.flush();
+        if (event.shouldCommit()) {
+            event.className = className;
+            event.instructions = vmWriter.getInstructionCount();
+            event.commit();
+        }
+    }
+
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Returns the VM-instruction-to-source-line map, or null unless {@link CompilerOptions#isSourceMap()} is set.
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
     public void compileClassVarDec() {
         JackTokenizer.Keyword kind = tokenizer.keyWord();
 
@@ -99,9 +207,32 @@ public class CompilationEngine {
                         throw new IllegalStateException("ClassVarDec expected ',' or ';' but found " + tokenizer.symbol());
             }
         }
+        if (!foundEnd) {
+            throw new IllegalStateException("ClassVarDec expected ';' but found " + tokenizer.tokenType());
+        }
     }
 
     public void compileSubroutine() throws IOException {
+        CompilerEvents.CompileSubroutine event = new CompilerEvents.CompileSubroutine();
+        event.begin();
+        int firstToken = tokenizer.tokensRead();
+        int firstInstruction = vmWriter.getInstructionCount();
+        // not known until the declaration is parsed
+        this.subroutineName = null;
+        try {
+            compileSubroutineDec();
+        } finally {
+            if (event.shouldCommit()) {
+                event.className = className;
+                event.subroutine = subroutineName;
+                event.tokens = tokenizer.tokensRead() - firstToken;
+                event.instructions = vmWriter.getInstructionCount() - firstInstruction;
+                event.commit();
+            }
+        }
+    }
+
+    private void compileSubroutineDec() throws IOException {
         // create a new subroutine symbol table
         this.subroutineSymbolTable.reset();
         this.subroutineType = tokenizer.keyWord();
@@ -226,19 +357,30 @@ public class CompilationEngine {
 
     public void compileStatements() throws IOException {
         while (true) {
+            int start = tokenizer.tokensRead();
             if (tokenizer.tokenType() == JackTokenizer.TokenType.KEYWORD) {
-                switch (tokenizer.keyWord()) {
-                    case LET -> compileLet();
-                    case IF -> compileIf();
-                    case WHILE -> compileWhile();
-                    case DO -> compileDo();
-                    case RETURN -> compileReturn();
-                    default -> throw new IllegalStateException("Expected a statement but found " + tokenizer.keyWord());
+                try {
+                    switch (tokenizer.keyWord()) {
+                        case LET -> compileLet();
+                        case IF -> compileIf();
+                        case WHILE -> compileWhile();
+                        case DO -> compileDo();
+                        case RETURN -> compileReturn();
+                        default -> throw new IllegalStateException("Expected a statement but found " + tokenizer.keyWord());
+                    }
+                } catch (JackTokenizer.EndOfInput e) {
+                    // the rest of the class is missing, so this is its last error
+                    reportError(e);
+                    throw new Resynchronize();
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    reportError(e);
+                    synchronizeStatement(start);
                 }
             } else if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == '}') {
                 break;
             } else {
-                throw new IllegalStateException("Expected a statement but found " + tokenizer.tokenType());
+                reportError(new IllegalStateException("Expected a statement but found " + tokenizer.tokenType()));
+                synchronizeStatement(start);
             }
         }
     }
@@ -289,7 +431,7 @@ public class CompilationEngine {
             vmWriter.writePop(VMWriter.Segment.fromKind(kindOf(varName)), indexOf(varName));
         }
         if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ';') {
-            throw new IllegalStateException("Let expected ';' but found " + tokenizer.symbol());
+            throw new IllegalStateException("Let expected ';' but found " + tokenizer.tokenType());
         }
         // dequeue ';'
         tokenizer.advance();
@@ -299,8 +441,14 @@ public class CompilationEngine {
         if (tokenizer.keyWord() != JackTokenizer.Keyword.IF) {
             throw new IllegalStateException("If expected a keyword but found " + tokenizer.keyWord());
         }
-        String l1 = "IF" + VMWriter.newLabel();
-        String l2 = "IF" + VMWriter.newLabel();
+        String l1 = "IF" + vmWriter.newLabel();
+        String l2 = "IF" + vmWriter.newLabel();
+        // the taken layout jumps when the condition is true, so its branch is profiled under a name of its own
+        String then = "IF_TRUE" + l1.substring(2);
+        if (isMostlyTrue(l1, then)) {
+            compileTakenIf(then, l2);
+            return;
+        }
         // dequeue 'if'
         //noinspection DuplicatedCode
         tokenizer.advance();
@@ -335,9 +483,76 @@ public class CompilationEngine {
         vmWriter.writeLabel(l2);
     }
 
+    /**
+     * Whether the profile saw the condition of an if statement mostly true. {@code label} is its 'if-goto' in the
+     * usual layout, which jumps when the condition is false, and {@code thenLabel} the one in the taken layout, which
+     * jumps when it is true; the profile may come from a build with either.
+     */
+    private boolean isMostlyTrue(String label, String thenLabel) {
+        ExecutionProfile profile = options.getProfile();
+        if (profile == null) {
+            return false;
+        }
+        String function = className + "." + subroutineName;
+        ExecutionProfile.Branch usual = profile.getBranch(function, label);
+        ExecutionProfile.Branch taken = profile.getBranch(function, thenLabel);
+        long isTrue = (usual == null ? 0 : usual.notTaken()) + (taken == null ? 0 : taken.taken());
+        long isFalse = (usual == null ? 0 : usual.taken()) + (taken == null ? 0 : taken.notTaken());
+        return profile.isHot(isTrue + isFalse) && isTrue > isFalse;
+    }
+
+    /**
+     * Lays the if statement out for a condition that is mostly true, so that case takes the branch instead of
+     * 'not', the branch not taken and the 'goto' past the else: condition, if-goto THEN, else statements, goto END,
+     * label THEN, statements, label END.
+     */
+    private void compileTakenIf(String then, String end) throws IOException {
+        // dequeue 'if'
+        tokenizer.advance();
+        compileExpression();
+        vmWriter.writeIf(then);
+
+        // dequeue '{'
+        tokenizer.advance();
+
+        // the statements are compiled now but written after the else
+        List<VMWriter.Captured> thenCode;
+        vmWriter.beginCapture();
+        try {
+            compileStatements();
+        } finally {
+            thenCode = vmWriter.endCapture();
+        }
+
+        // dequeue '}'
+        tokenizer.advance();
+
+        // check for else
+        if (tokenizer.tokenType() == JackTokenizer.TokenType.KEYWORD && tokenizer.keyWord() == JackTokenizer.Keyword.ELSE) {
+            // dequeue 'else'
+            tokenizer.advance();
+
+            // dequeue '{'
+            tokenizer.advance();
+
+            compileStatements();
+
+            // dequeue '}'
+            tokenizer.advance();
+        }
+        vmWriter.writeGoto(end);
+        vmWriter.writeLabel(then);
+        vmWriter.replay(thenCode);
+        vmWriter.writeLabel(end);
+    }
+
     public void compileWhile() throws IOException {
-        String l1 = "WHILE" + VMWriter.newLabel();
-        String l2 = "WHILE" + VMWriter.newLabel();
+        if (options.isOptimizeLoops()) {
+            compileRotatedWhile();
+            return;
+        }
+        String l1 = "WHILE" + vmWriter.newLabel();
+        String l2 = "WHILE" + vmWriter.newLabel();
         vmWriter.writeLabel(l1);
 
         if (tokenizer.keyWord() != JackTokenizer.Keyword.WHILE) {
@@ -362,6 +577,43 @@ public class CompilationEngine {
         tokenizer.advance();
     }
 
+    /**
+     * Lays the loop out with the condition at the bottom, so an iteration takes one branch instead of
+     * 'not', 'if-goto' and 'goto': goto COND, label BODY, statements, label COND, condition, if-goto BODY.
+     */
+    private void compileRotatedWhile() throws IOException {
+        String body = "WHILE" + vmWriter.newLabel();
+        String condition = "WHILE" + vmWriter.newLabel();
+
+        if (tokenizer.keyWord() != JackTokenizer.Keyword.WHILE) {
+            throw new IllegalStateException("While expected a keyword but found " + tokenizer.keyWord());
+        }
+        // dequeue 'while'
+        tokenizer.advance();
+
+        // the condition is compiled now but written after the body
+        List<VMWriter.Captured> conditionCode;
+        vmWriter.beginCapture();
+        try {
+            compileExpression();
+        } finally {
+            conditionCode = vmWriter.endCapture();
+        }
+        vmWriter.writeGoto(condition);
+        vmWriter.writeLabel(body);
+
+        // dequeue '{'
+        tokenizer.advance();
+
+        compileStatements();
+        vmWriter.writeLabel(condition);
+        vmWriter.replay(conditionCode);
+        vmWriter.writeIf(body);
+
+        // dequeue '}'
+        tokenizer.advance();
+    }
+
     public void compileDo() throws IOException {
         if (tokenizer.keyWord() != JackTokenizer.Keyword.DO) {
             throw new IllegalStateException("Do expected a keyword but found " + tokenizer.keyWord());
@@ -372,6 +624,9 @@ public class CompilationEngine {
         compileExpression();
         vmWriter.writePop(VMWriter.Segment.TEMP, 0); // ignore the return value
 
+        if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ';') {
+            throw new IllegalStateException("Do expected ';' but found " + tokenizer.tokenType());
+        }
         // dequeue ';'
         tokenizer.advance();
     }
@@ -390,41 +645,95 @@ public class CompilationEngine {
 
         vmWriter.writeReturn();
 
+        if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ';') {
+            throw new IllegalStateException("Return expected ';' but found " + tokenizer.tokenType());
+        }
         tokenizer.advance(); // dequeue ';'
     }
 
     public void compileExpression() throws IOException {
-        // write term
-        compileTerm();
+        // Jack operators have no precedence and associate to the left, so the operator stack of a
+        // shunting-yard parser never holds more than one pending operator per (sub)expression.
+        // Nesting (parentheses, unary operators, array indices and call arguments) lives on an explicit
+        // stack instead of the Java call stack, so deeply nested input cannot overflow it.
+        Deque<ExpressionFrame> stack = new ArrayDeque<>();
+        stack.push(new ExpressionFrame(ExpressionFrame.Kind.EXPRESSION));
+        compileFrames(stack, false);
+    }
 
-        while (tokenizer.isOp()) { // can only be bi-nary operators
-            // save 'op' for later
-            char op = tokenizer.symbol();
+    public void compileTerm() throws IOException {
+        Deque<ExpressionFrame> stack = new ArrayDeque<>();
+        // a term that opens a nested expression is finished on the same explicit stack
+        compileFrames(stack, compileTermStart(stack));
+    }
+
+    public int compileExpressionList() throws IOException {
+        // dequeue '('
+        if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == '(') {
             tokenizer.advance();
-            // push 'term'
-            compileTerm();
-            // write op
-            switch (op) {
-                case '+' -> vmWriter.writeArithmetic(VMWriter.Command.ADD);
-                case '-' -> vmWriter.writeArithmetic(VMWriter.Command.SUB);
-                case '*' -> vmWriter.writeCall("Math.multiply", 2);
-                case '/' -> vmWriter.writeCall("Math.divide", 2);
-                case '&' -> vmWriter.writeArithmetic(VMWriter.Command.AND);
-                case '|' -> vmWriter.writeArithmetic(VMWriter.Command.OR);
-                case '<' -> vmWriter.writeArithmetic(VMWriter.Command.LT);
-                case '>' -> vmWriter.writeArithmetic(VMWriter.Command.GT);
-                case '=' -> vmWriter.writeArithmetic(VMWriter.Command.EQ);
+        }
+        int numOfExpressions = 0;
+        if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ')') {
+            do {
+                compileExpression();
+                numOfExpressions++;
+                if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == ',') {
+                    // dequeue ','
+                    tokenizer.advance();
+                }
+            } while (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ')');
+        }
+        // dequeue ')'
+        tokenizer.advance();
+        return numOfExpressions;
+    }
+
+    /**
+     * Runs the frames on {@code stack} to completion. {@code termDone} tells whether the term at the top was
+     * already compiled.
+     */
+    private void compileFrames(Deque<ExpressionFrame> stack, boolean termDone) throws IOException {
+        while (!stack.isEmpty()) {
+            if (!termDone) {
+                termDone = compileTermStart(stack);
+                continue;
+            }
+            ExpressionFrame frame = stack.peek();
+            if (frame.kind == ExpressionFrame.Kind.UNARY) {
+                stack.pop();
+                writeUnaryOp(frame.op);
+                continue;
+            }
+            // a term can only complete inside an expression or a unary operator
+            if (frame.op != 0) {
+                writeBinaryOp(frame.op);
+                frame.op = 0;
+            }
+            // anything but a symbol ends the expression, and is reported by whatever expected a symbol next
+            if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.isOp()) { // can only be bi-nary operators
+                // save 'op' for after the next term
+                frame.op = tokenizer.symbol();
+                tokenizer.advance();
+                termDone = false;
+            } else {
+                stack.pop();
+                termDone = compileExpressionEnd(stack);
             }
         }
     }
 
-    public void compileTerm() throws IOException {
+    /**
+     * Compiles the leading part of a term. Returns true if the term is complete, or false if it opened
+     * a nested expression (or unary operand) on the stack that still has to be compiled.
+     */
+    private boolean compileTermStart(Deque<ExpressionFrame> stack) throws IOException {
         switch (tokenizer.tokenType()) {
             case INT_CONST -> {
                 int intValue = tokenizer.intVal();
                 vmWriter.writePush(VMWriter.Segment.CONST, intValue);
                 // dequeue 'intConst'
                 tokenizer.advance();
+                return true;
             }
             case STRING_CONST -> {
                 String stringValue = tokenizer.stringVal();
@@ -439,6 +748,7 @@ public class CompilationEngine {
                 }
                 // dequeue the string value
                 tokenizer.advance();
+                return true;
             }
             case KEYWORD -> {
                 if (tokenizer.keyWord().isKeywordConstant()) {
@@ -451,6 +761,7 @@ public class CompilationEngine {
                         vmWriter.writePush(VMWriter.Segment.POINTER, 0);
                     }
                     tokenizer.advance();
+                    return true;
                 } else {
                     throw new IllegalStateException("Term expected a keyword constant but found " + tokenizer.keyWord());
                 }
@@ -475,74 +786,211 @@ public class CompilationEngine {
                         vmWriter.writePush(VMWriter.Segment.fromKind(kindOf(identifier)), indexOf(identifier));
                         nArgs++;
                     }
-
-                    nArgs += compileExpressionList();
-                    vmWriter.writeCall(typeOf(identifier) + "." + subroutineName, nArgs);
-
+                    return compileExpressionListStart(stack, typeOf(identifier) + "." + subroutineName, nArgs);
                 } else if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == '[') {
                     // dequeue '['
                     tokenizer.advance();
                     vmWriter.writePush(VMWriter.Segment.fromKind(kindOf(identifier)), indexOf(identifier));
-                    compileExpression();
-                    vmWriter.writeArithmetic(VMWriter.Command.ADD);
-                    // dequeue ']'
-                    if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ']') {
-                        throw new IllegalStateException("Term expected ']' but found " + tokenizer.symbol());
-                    }
-                    tokenizer.advance();
-                    // dequeue the value
-                    vmWriter.writePop(VMWriter.Segment.POINTER, 1);
-                    vmWriter.writePush(VMWriter.Segment.THAT, 0);
+                    stack.push(new ExpressionFrame(ExpressionFrame.Kind.ARRAY));
+                    stack.push(new ExpressionFrame(ExpressionFrame.Kind.EXPRESSION));
+                    return false;
                 } else if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == '(') {
                     vmWriter.writePush(VMWriter.Segment.POINTER, 0);
-                    int n = compileExpressionList();
-                    vmWriter.writeCall(className + "." + identifier, n + 1);
+                    return compileExpressionListStart(stack, className + "." + identifier, 1);
                 } else {
                     vmWriter.writePush(VMWriter.Segment.fromKind(kindOf(identifier)), indexOf(identifier));
+                    return true;
                 }
             }
             case SYMBOL -> {
                 if (tokenizer.symbol() == '(') {
                     // dequeue '('
                     tokenizer.advance();
-                    compileExpression();
-                    // dequeue ')'
-                    tokenizer.advance();
+                    stack.push(new ExpressionFrame(ExpressionFrame.Kind.PARENTHESES));
+                    stack.push(new ExpressionFrame(ExpressionFrame.Kind.EXPRESSION));
+                    return false;
                 } else if (tokenizer.isUnaryOp()) {
-                    char unaryOp = tokenizer.symbol();
+                    ExpressionFrame unary = new ExpressionFrame(ExpressionFrame.Kind.UNARY);
+                    unary.op = tokenizer.symbol();
                     // dequeue the operator
                     tokenizer.advance();
-                    compileTerm();
-                    switch (unaryOp) {
-                        case '-' -> vmWriter.writeArithmetic(VMWriter.Command.NEG);
-                        case '~' -> vmWriter.writeArithmetic(VMWriter.Command.NOT);
-                    }
+                    stack.push(unary);
+                    return false;
                 } else {
                     throw new IllegalStateException("Term expected a symbol but found " + tokenizer.symbol());
                 }
             }
+            default -> throw new IllegalStateException("Term expected a term but found " + tokenizer.tokenType());
         }
     }
 
-    public int compileExpressionList() throws IOException {
+    /**
+     * Starts the argument list of a call to {@code name}. Returns true if the call was written right away
+     * (empty list), or false if the first argument expression was pushed on the stack.
+     */
+    private boolean compileExpressionListStart(Deque<ExpressionFrame> stack, String name, int nArgs) throws IOException {
         // dequeue '('
         if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == '(') {
             tokenizer.advance();
         }
-        int numOfExpressions = 0;
-        if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ')') {
-            do {
-                compileExpression();
-                numOfExpressions++;
+        if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == ')') {
+            // dequeue ')'
+            tokenizer.advance();
+            vmWriter.writeCall(name, nArgs);
+            return true;
+        }
+        ExpressionFrame call = new ExpressionFrame(ExpressionFrame.Kind.CALL);
+        call.name = name;
+        call.nArgs = nArgs;
+        stack.push(call);
+        stack.push(new ExpressionFrame(ExpressionFrame.Kind.EXPRESSION));
+        return false;
+    }
+
+    /**
+     * Finishes whatever opened the expression that was just popped. Returns true if that completes a term,
+     * or false if another argument expression was pushed on the stack.
+     */
+    private boolean compileExpressionEnd(Deque<ExpressionFrame> stack) throws IOException {
+        ExpressionFrame parent = stack.peek();
+        if (parent == null) {
+            // the outermost expression is done
+            return true;
+        }
+        switch (parent.kind) {
+            case PARENTHESES -> {
+                // dequeue ')'
+                tokenizer.advance();
+                stack.pop();
+                return true;
+            }
+            case ARRAY -> {
+                vmWriter.writeArithmetic(VMWriter.Command.ADD);
+                // dequeue ']'
+                if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ']') {
+                    throw new IllegalStateException("Term expected ']' but found " + tokenizer.tokenType());
+                }
+                tokenizer.advance();
+                // dequeue the value
+                vmWriter.writePop(VMWriter.Segment.POINTER, 1);
+                vmWriter.writePush(VMWriter.Segment.THAT, 0);
+                stack.pop();
+                return true;
+            }
+            case CALL -> {
+                parent.nArgs++;
                 if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL && tokenizer.symbol() == ',') {
                     // dequeue ','
                     tokenizer.advance();
                 }
-            } while (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ')');
+                if (tokenizer.tokenType() != JackTokenizer.TokenType.SYMBOL || tokenizer.symbol() != ')') {
+                    stack.push(new ExpressionFrame(ExpressionFrame.Kind.EXPRESSION));
+                    return false;
+                }
+                // dequeue ')'
+                tokenizer.advance();
+                vmWriter.writeCall(parent.name, parent.nArgs);
+                stack.pop();
+                return true;
+            }
+            default -> throw new IllegalStateException("Unexpected expression frame " + parent.kind);
+        }
+    }
+
+    private void writeBinaryOp(char op) throws IOException {
+        switch (op) {
+            case '+' -> vmWriter.writeArithmetic(VMWriter.Command.ADD);
+            case '-' -> vmWriter.writeArithmetic(VMWriter.Command.SUB);
+            case '*' -> vmWriter.writeCall("Math.multiply", 2);
+            case '/' -> vmWriter.writeCall("Math.divide", 2);
+            case '&' -> vmWriter.writeArithmetic(VMWriter.Command.AND);
+            case '|' -> vmWriter.writeArithmetic(VMWriter.Command.OR);
+            case '<' -> vmWriter.writeArithmetic(VMWriter.Command.LT);
+            case '>' -> vmWriter.writeArithmetic(VMWriter.Command.GT);
+            case '=' -> vmWriter.writeArithmetic(VMWriter.Command.EQ);
+        }
+    }
+
+    private void writeUnaryOp(char op) throws IOException {
+        switch (op) {
+            case '-' -> vmWriter.writeArithmetic(VMWriter.Command.NEG);
+            case '~' -> vmWriter.writeArithmetic(VMWriter.Command.NOT);
+        }
+    }
+
+    private void reportError(RuntimeException e) {
+        endOfInput |= e instanceof JackTokenizer.EndOfInput;
+        int position = e instanceof JackTokenizer.EndOfInput ? tokenizer.endPosition() : tokenizer.position();
+        diagnostics.add(new Diagnostic(sourceName, JackTokenizer.lineOf(position), JackTokenizer.columnOf(position),
+                String.valueOf(e.getMessage())));
+    }
+
+    /**
+     * Panic-mode recovery inside a subroutine body: skips to just past the next ';', or to the next statement
+     * keyword or closing '}' of the current block. Blocks opened while skipping are skipped as a whole.
+     * Reaching a class member (or the end of the input) unwinds to {@link #compileClass()} instead.
+     * A statement that failed before consuming its keyword (token number {@code start}) is skipped, so every
+     * recovery makes progress.
+     */
+    private void synchronizeStatement(int start) {
+        int depth = 0;
+        while (true) {
+            if (tokenizer.tokenType() == JackTokenizer.TokenType.SYMBOL) {
+                char symbol = tokenizer.symbol();
+                if (symbol == '}' && depth == 0) {
+                    return;
+                } else if (symbol == ';' && depth == 0) {
+                    if (!tokenizer.hasMoreTokens()) {
+                        throw new Resynchronize();
+                    }
+                    // dequeue ';'
+                    skipToken();
+                    return;
+                } else if (symbol == '{') {
+                    depth++;
+                } else if (symbol == '}') {
+                    depth--;
+                }
+            } else if (tokenizer.tokenType() == JackTokenizer.TokenType.KEYWORD) {
+                switch (tokenizer.keyWord()) {
+                    case LET, IF, WHILE, DO, RETURN -> {
+                        if (depth == 0 && tokenizer.tokensRead() != start) {
+                            return;
+                        }
+                    }
+                    case STATIC, FIELD, CONSTRUCTOR, FUNCTION, METHOD -> throw new Resynchronize();
+                }
+            }
+            if (!tokenizer.hasMoreTokens()) {
+                throw new Resynchronize();
+            }
+            skipToken();
+        }
+    }
+
+    /**
+     * Panic-mode recovery at class level: skips to the next class variable or subroutine declaration, past the one
+     * that failed if it did so before consuming its keyword (token number {@code start}).
+     */
+    private void synchronizeClassMember(int start) {
+        while (tokenizer.hasMoreTokens()) {
+            if (tokenizer.tokenType() == JackTokenizer.TokenType.KEYWORD && tokenizer.tokensRead() != start) {
+                switch (tokenizer.keyWord()) {
+                    case STATIC, FIELD, CONSTRUCTOR, FUNCTION, METHOD -> {
+                        return;
+                    }
+                }
+            }
+            skipToken();
+        }
+    }
+
+    private void skipToken() {
+        try {
+            tokenizer.advance();
+        } catch (IllegalArgumentException e) {
+            // an unknown token is skipped like any other
         }
-        // dequeue ')'
-        tokenizer.advance();
-        return numOfExpressions;
     }
 
     private SymbolTable.Kind kindOf(String name) {
@@ -571,4 +1019,33 @@ public class CompilationEngine {
         }
     }
 
+    /**
+     * Unwinds a failed subroutine to {@link #compileClass()} once its error has been reported.
+     */
+    private static final class Resynchronize extends RuntimeException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private Resynchronize() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * One level of expression nesting, kept on the heap by {@link #compileExpression()}.
+     */
+    private static final class ExpressionFrame {
+        private enum Kind {EXPRESSION, PARENTHESES, UNARY, ARRAY, CALL}
+
+        private final Kind kind;
+        // pending operator of an EXPRESSION, or the operator of a UNARY
+        private char op;
+        // subroutine name and argument count so far of a CALL
+        private String name;
+        private int nArgs;
+
+        private ExpressionFrame(Kind kind) {
+            this.kind = kind;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles a list of sources with reading, compiling and writing overlapped: one thread reads sources ahead,
+ * {@code parallelism} workers compile them, and one thread hands every finished class to a {@link Sink} while the
+ * others are still being compiled. The queues between the stages are bounded, so only a few files per worker are
+ * held in memory, however many there are and however slow the disk is.
+ * <p>
+ * Only for per-file output: whole-program passes such as inlining need every class first, see {@link BatchCompiler}.
+ */
+public class CompilationPipeline {
+    // files read ahead, and compiled files waiting to be written, per worker
+    private static final int QUEUE_PER_WORKER = 2;
+    // marks the end of a queue
+    private static final Item END = new Item(-1, null, null);
+
+    private final int parallelism;
+    private final CompilerOptions options;
+
+    public CompilationPipeline(int parallelism, CompilerOptions options) {
+        this.parallelism = parallelism;
+        this.options = options;
+    }
+
+    /**
+     * Writes one compiled class, e.g. to its .vm file. Called once per successful result, here from a single thread.
+     */
+    public interface Sink {
+        void write(BatchCompiler.Result result) throws IOException;
+    }
+
+    /**
+     * Runs the pipeline to completion. Results come back in the order of {@code sources}; a failed write shows up as
+     * a diagnostic of its result.
+     */
+    public List<BatchCompiler.Result> run(List<BatchCompiler.Source> sources, Sink sink) throws InterruptedException {
+        BlockingQueue<Item> read = new ArrayBlockingQueue<>(parallelism * QUEUE_PER_WORKER);
+        BlockingQueue<Item> compiled = new ArrayBlockingQueue<>(parallelism * QUEUE_PER_WORKER);
+        BatchCompiler.Result[] results = new BatchCompiler.Result[sources.size()];
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism + 2);
+        try {
+            List<Future<?>> stages = new ArrayList<>();
+            stages.add(executor.submit(() -> readAll(sources, read)));
+            for (int i = 0; i < parallelism; i++) {
+                stages.add(executor.submit(() -> compileAll(read, compiled)));
+            }
+            stages.add(executor.submit(() -> writeAll(compiled, sink, results)));
+            for (Future<?> stage : stages) {
+                stage.get();
+            }
+        } catch (ExecutionException e) {
+            // the stages turn every error into a failed result, so this is a bug
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // on interrupt, stop the stages blocked on their queues
+            executor.shutdownNow();
+        }
+        return Arrays.asList(results);
+    }
+
+    private Void readAll(List<BatchCompiler.Source> sources, BlockingQueue<Item> read) throws InterruptedException {
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                BatchCompiler.Source source = sources.get(i);
+                try (InputStream inputStream = source.open()) {
+                    read.put(new Item(i, BatchCompiler.Source.of(source.name(), inputStream.readAllBytes()), null));
+                } catch (IOException e) {
+                    Diagnostic diagnostic = new Diagnostic(source.name(), 0, 0, "I/O error: " + e.getMessage());
+                    read.put(new Item(i, null, new BatchCompiler.Result(source.name(), "", null, List.of(diagnostic))));
+                } catch (RuntimeException | Error e) {
+                    read.put(new Item(i, null, failed(source.name(), e)));
+                }
+            }
+        } finally {
+            // one end marker per worker
+            for (int i = 0; i < parallelism; i++) {
+                read.put(END);
+            }
+        }
+        return null;
+    }
+
+    private Void compileAll(BlockingQueue<Item> read, BlockingQueue<Item> compiled) throws InterruptedException {
+        try {
+            Item item;
+            while ((item = read.take()) != END) {
+                BatchCompiler.Result result = item.result != null ? item.result : compile(item.source);
+                compiled.put(new Item(item.index, null, result));
+            }
+        } finally {
+            compiled.put(END);
+        }
+        return null;
+    }
+
+    private BatchCompiler.Result compile(BatchCompiler.Source source) {
+        try {
+            return BatchCompiler.compile(source, options);
+        } catch (Error e) {
+            // e.g. a StackOverflowError, the other files are still compiled
+            return failed(source.name(), e);
+        }
+    }
+
+    private Void writeAll(BlockingQueue<Item> compiled, Sink sink, BatchCompiler.Result[] results) throws InterruptedException {
+        // one end marker per worker
+        int running = parallelism;
+        while (running > 0) {
+            Item item = compiled.take();
+            if (item == END) {
+                running--;
+                continue;
+            }
+            results[item.index] = write(sink, item.result);
+        }
+        return null;
+    }
+
+    /**
+     * Hands a successful result to {@code sink}. Returns the result, with the error as its diagnostic if writing failed.
+     * Exceptions and errors thrown by {@code sink} fail this result only.
+     */
+    static BatchCompiler.Result write(Sink sink, BatchCompiler.Result result) {
+        if (!result.isSuccess()) {
+            return result;
+        }
+        try {
+            sink.write(result);
+            return result;
+        } catch (IOException e) {
+            Diagnostic diagnostic = new Diagnostic(result.name(), 0, 0, "I/O error: " + e.getMessage());
+            return new BatchCompiler.Result(result.name(), result.output(), result.sourceMap(), List.of(diagnostic));
+        } catch (RuntimeException | Error e) {
+            return failed(result.name(), e);
+        }
+    }
+
+    /**
+     * The result of a file whose stage died from an unexpected exception or error, so it is reported like any other
+     * failed file instead of going missing.
+     */
+    static BatchCompiler.Result failed(String name, Throwable e) {
+        return new BatchCompiler.Result(name, "", null, List.of(new Diagnostic(name, 0, 0, String.valueOf(e))));
+    }
+
+    // a source read into memory, or the result it turned into
+    private record Item(int index, BatchCompiler.Source source, BatchCompiler.Result result) {
+    }
+}
@@ -0,0 +1,73 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for the phases of {@link CompilationEngine}, e.g. for
+ * {@code java -XX:StartFlightRecording:filename=build.jfr JackCompiler ...} and then {@code jfr print --events jack.* build.jfr}.
+ * While no recording is running, {@code begin()}, {@code shouldCommit()} and {@code commit()} are no-ops the JIT
+ * compiles away, together with the event object itself.
+ */
+public final class CompilerEvents {
+    private CompilerEvents() {
+    }
+
+    @Name("jack.Tokenize")
+    @Label("Tokenize")
+    @Category("Jack Compiler")
+    @Description("Reading and splitting one source file into tokens")
+    public static final class Tokenize extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("jack.CompileClass")
+    @Label("Compile Class")
+    @Category("Jack Compiler")
+    @Description("Compiling one class, subroutines included")
+    public static final class CompileClass extends Event {
+        @Label("Class")
+        String className;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Instructions")
+        int instructions;
+    }
+
+    @Name("jack.CompileSubroutine")
+    @Label("Compile Subroutine")
+    @Category("Jack Compiler")
+    @Description("Compiling one constructor, function or method")
+    public static final class CompileSubroutine extends Event {
+        @Label("Class")
+        String className;
+
+        @Label("Subroutine")
+        String subroutine;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Instructions")
+        int instructions;
+    }
+
+    @Name("jack.Flush")
+    @Label("Flush Output")
+    @Category("Jack Compiler")
+    @Description("Writing the compiled class to the output stream")
+    public static final class Flush extends Event {
+        @Label("Class")
+        String className;
+
+        @Label("Instructions")
+        int instructions;
+    }
+}
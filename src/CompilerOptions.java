@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Optional behaviour of {@link CompilationEngine}. The defaults produce plain .vm output only.
+ */
+public class CompilerOptions {
+    public static final String USAGE = "[--source-map] [--asm] [--inline[=<max instructions>]] [--optimize-loops] [--propagate-constants] [--eliminate-subexpressions] [--profile=<file>]";
+
+    private boolean sourceMap = false;
+    private boolean asm = false;
+    private boolean inline = false;
+    private int inlineMaxInstructions = 8;
+    private boolean optimizeLoops = false;
+    private boolean propagateConstants = false;
+    private boolean eliminateSubexpressions = false;
+    private ExecutionProfile profile = null;
+
+    public CompilerOptions() {
+    }
+
+    public CompilerOptions(CompilerOptions other) {
+        this.sourceMap = other.sourceMap;
+        this.asm = other.asm;
+        this.inline = other.inline;
+        this.inlineMaxInstructions = other.inlineMaxInstructions;
+        this.optimizeLoops = other.optimizeLoops;
+        this.propagateConstants = other.propagateConstants;
+        this.eliminateSubexpressions = other.eliminateSubexpressions;
+        this.profile = other.profile;
+    }
+
+    /**
+     * Applies one command line option. Returns false if {@code arg} is not a compiler option, throws
+     * IllegalArgumentException if its value is invalid.
+     */
+    public boolean parse(String arg) {
+        switch (arg) {
+            // write <class>.vm.map next to every .vm file
+            case "--source-map" -> sourceMap = true;
+            // write one Hack .asm program instead of .vm files
+            case "--asm" -> asm = true;
+            // inline small leaf subroutines across classes
+            case "--inline" -> inline = true;
+            // bottom-tested while loops with invariant code hoisted out
+            case "--optimize-loops" -> optimizeLoops = true;
+            // write-once variables replaced by their constant value, constant arithmetic folded
+            case "--propagate-constants" -> propagateConstants = true;
+            // repeated expressions, like a[i] in a[i] + a[i], computed once
+            case "--eliminate-subexpressions" -> eliminateSubexpressions = true;
+            default -> {
+                if (arg.startsWith("--inline=")) {
+                    inline = true;
+                    inlineMaxInstructions = Integer.parseInt(arg.substring("--inline=".length()));
+                } else if (arg.startsWith("--profile=")) {
+                    // focus the optimizations on what ran often
+                    String file = arg.substring("--profile=".length());
+                    try {
+                        profile = ExecutionProfile.read(Path.of(file));
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Cannot read profile " + file + ": " + e.getMessage());
+                    }
+                } else {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isSourceMap() {
+        return sourceMap;
+    }
+
+    public void setSourceMap(boolean sourceMap) {
+        this.sourceMap = sourceMap;
+    }
+
+    /**
+     * Emit Hack assembly through {@link HackAsmWriter} instead of .vm text.
+     */
+    public boolean isAsm() {
+        return asm;
+    }
+
+    public void setAsm(boolean asm) {
+        this.asm = asm;
+    }
+
+    /**
+     * Inline small leaf subroutines across classes, see {@link Inliner}. Only applies to whole-program compiles
+     * through {@link BatchCompiler}.
+     */
+    public boolean isInline() {
+        return inline;
+    }
+
+    public void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
+    /**
+     * Largest subroutine body, in VM instructions, that is still inlined.
+     */
+    public int getInlineMaxInstructions() {
+        return inlineMaxInstructions;
+    }
+
+    public void setInlineMaxInstructions(int inlineMaxInstructions) {
+        this.inlineMaxInstructions = inlineMaxInstructions;
+    }
+
+    /**
+     * Compile while loops with the condition at the bottom and hoist loop-invariant expressions out of them,
+     * see {@link LoopOptimizer}.
+     */
+    public boolean isOptimizeLoops() {
+        return optimizeLoops;
+    }
+
+    public void setOptimizeLoops(boolean optimizeLoops) {
+        this.optimizeLoops = optimizeLoops;
+    }
+
+    /**
+     * Replace reads of variables that are only ever assigned a constant with that constant, and fold constant
+     * arithmetic, see {@link ConstantPropagator}.
+     */
+    public boolean isPropagateConstants() {
+        return propagateConstants;
+    }
+
+    public void setPropagateConstants(boolean propagateConstants) {
+        this.propagateConstants = propagateConstants;
+    }
+
+    /**
+     * Compute repeated call-free expressions, like array reads, once and reuse them through temp slots,
+     * see {@link SubexpressionEliminator}.
+     */
+    public boolean isEliminateSubexpressions() {
+        return eliminateSubexpressions;
+    }
+
+    public void setEliminateSubexpressions(boolean eliminateSubexpressions) {
+        this.eliminateSubexpressions = eliminateSubexpressions;
+    }
+
+    /**
+     * How often the code ran, or null. With a profile, {@link Inliner} only inlines hot callees,
+     * {@link LoopOptimizer} only hoists out of hot loops, and an if statement whose condition is mostly true is laid
+     * out so that the true case takes the branch.
+     */
+    public ExecutionProfile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(ExecutionProfile profile) {
+        this.profile = profile;
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.*;
+
+/**
+ * Replaces reads of write-once variables with their constant value, then folds the constant arithmetic this exposes.
+ * Works on the VM code of one class, where every variable is already resolved to its segment and index.
+ * <p>
+ * A local is propagated if it is stored exactly once, with a constant, before the first branch of its subroutine:
+ * every later read then sees that value and earlier reads still see 0, so the store itself is dropped.
+ * A static is propagated if it is stored exactly once in the whole class, since Jack statics are private to it, and
+ * that store comes before the first branch of its subroutine. Only the reads after the store in that subroutine are
+ * replaced, and the store is kept. Reads in other subroutines are never replaced, not even for a static that an
+ * init function sets once: nothing in the code of one class shows that init runs before them, and a lazy-init check
+ * that reads a flag before init must still see 0.
+ * <p>
+ * Folding covers the arithmetic and logic commands, {@code Math.multiply} and {@code Math.divide} whenever the
+ * result fits in 16 bits without overflow, plus the identities {@code x + 0, x - 0, x * 1, x / 1} and
+ * {@code x * 2 = x + x}.
+ */
+public class ConstantPropagator {
+    private static final int MAX_PASSES = 16;
+
+    private List<String> code = new ArrayList<>();
+    private List<Integer> lines = new ArrayList<>();
+
+    private ConstantPropagator(String vmCode, SourceMap sourceMap) {
+        for (String line : vmCode.split("\n")) {
+            if (!line.isBlank()) {
+                lines.add(sourceMap == null ? 0 : sourceMap.lineOf(code.size()));
+                code.add(line.trim());
+            }
+        }
+    }
+
+    /**
+     * Returns the optimized VM code of one class. If {@code sourceMap} is not null it is updated in place.
+     */
+    public static String optimize(String vmCode, SourceMap sourceMap) {
+        ConstantPropagator propagator = new ConstantPropagator(vmCode, sourceMap);
+        // a folded store can make another variable constant, e.g. let a = 3; let b = a * 2;
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            boolean changed = propagator.fold();
+            changed |= propagator.propagate();
+            if (!changed) {
+                break;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        SourceMap optimizedMap = new SourceMap();
+        for (int i = 0; i < propagator.code.size(); i++) {
+            sb.append(propagator.code.get(i)).append('\n');
+            optimizedMap.record(i, propagator.lines.get(i));
+        }
+        if (sourceMap != null) {
+            sourceMap.replaceWith(optimizedMap);
+        }
+        return sb.toString();
+    }
+
+    private boolean propagate() {
+        Map<Integer, List<String>> edits = new HashMap<>();
+        Map<String, Integer> staticStores = new HashMap<>();
+        Map<String, Integer> staticCounts = new HashMap<>();
+        int function = 0;
+        for (int end = 1; end <= code.size(); end++) {
+            if (end < code.size() && !code.get(end).startsWith("function ")) {
+                continue;
+            }
+            // code[function, end) is one subroutine
+            Map<String, Integer> localStores = new HashMap<>();
+            Map<String, Integer> localCounts = new HashMap<>();
+            // a store before the first branch runs exactly once, before everything after it
+            int firstBranch = end;
+            for (int i = function; i < end; i++) {
+                String instruction = code.get(i);
+                if (instruction.startsWith("label ") || instruction.startsWith("goto ") || instruction.startsWith("if-goto ")) {
+                    firstBranch = Math.min(firstBranch, i);
+                } else if (instruction.startsWith("pop local ")) {
+                    localStores.put(instruction, i < firstBranch ? i : -1);
+                    localCounts.merge(instruction, 1, Integer::sum);
+                } else if (instruction.startsWith("pop static ")) {
+                    staticStores.put(instruction, i < firstBranch ? i : -1);
+                    staticCounts.merge(instruction, 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<String, Integer> store : localStores.entrySet()) {
+                int pop = store.getValue();
+                int[] value = pop < 0 || localCounts.get(store.getKey()) > 1 ? null : constantAt(pop);
+                if (value == null) {
+                    continue;
+                }
+                String read = "push" + store.getKey().substring(3);
+                for (int i = pop + 1; i < end; i++) {
+                    if (code.get(i).equals(read)) {
+                        edits.put(i, constant(value[0]));
+                    }
+                }
+                // the store is dead now
+                for (int i = pop - value[1]; i <= pop; i++) {
+                    edits.put(i, List.of());
+                }
+            }
+            function = end;
+        }
+
+        for (Map.Entry<String, Integer> store : staticStores.entrySet()) {
+            int pop = store.getValue();
+            int[] value = pop < 0 || staticCounts.get(store.getKey()) > 1 ? null : constantAt(pop);
+            if (value == null) {
+                continue;
+            }
+            String read = "push" + store.getKey().substring(3);
+            for (int i = pop + 1; i < code.size() && !code.get(i).startsWith("function "); i++) {
+                if (code.get(i).equals(read)) {
+                    edits.put(i, constant(value[0]));
+                }
+            }
+        }
+        return apply(edits);
+    }
+
+    private boolean fold() {
+        Map<Integer, List<String>> edits = new HashMap<>();
+        // after an edit, look for the next one past it, so edits never overlap
+        int done = 0;
+        for (int i = 0; i < code.size(); i++) {
+            String[] parts = code.get(i).split(" ");
+            String op = parts[0].equals("call") ? parts[1] : parts[0];
+            int[] y = constantAt(i);
+            int[] x = y == null ? null : constantAt(i - y[1]);
+            List<String> folded = null;
+            int start = i;
+            switch (op) {
+                case "neg", "not" -> {
+                    // push constant c; neg is already as short as it gets
+                    if (y != null && !(op.equals("neg") && y[1] == 1)) {
+                        folded = constant(evaluate(op, 0, y[0]));
+                        start = i - y[1];
+                    }
+                }
+                case "add", "sub", "and", "or", "eq", "gt", "lt", "Math.multiply", "Math.divide" -> {
+                    if (x != null) {
+                        folded = constant(evaluate(op, x[0], y[0]));
+                        start = i - y[1] - x[1];
+                    } else if (y != null && y[1] == 1) {
+                        // x + 0, x - 0, x * 1, x / 1
+                        boolean identity = switch (op) {
+                            case "add", "sub" -> y[0] == 0;
+                            case "Math.multiply", "Math.divide" -> y[0] == 1;
+                            default -> false;
+                        };
+                        if (identity) {
+                            folded = List.of();
+                            start = i - 1;
+                        } else if (op.equals("Math.multiply") && y[0] == 2 && isVariable(i - 2)) {
+                            folded = List.of(code.get(i - 2), code.get(i - 2), "add");
+                            start = i - 2;
+                        }
+                    }
+                }
+            }
+            if (folded != null && start >= done) {
+                for (int k = start; k <= i; k++) {
+                    edits.put(k, List.of());
+                }
+                edits.put(start, folded);
+                done = i + 1;
+            }
+        }
+        return apply(edits);
+    }
+
+    // null if the result does not fit in 16 bits, or would differ between the VM and the Hack implementation;
+    // the unary commands only use y
+    private static Integer evaluate(String op, int x, int y) {
+        int result = switch (op) {
+            case "neg" -> -y;
+            case "not" -> ~y;
+            case "add" -> x + y;
+            case "sub" -> x - y;
+            case "and" -> x & y;
+            case "or" -> x | y;
+            case "Math.multiply" -> x * y;
+            case "Math.divide" -> y == 0 ? Integer.MIN_VALUE : x / y;
+            // compared by subtracting
+            case "eq" -> x == y ? -1 : 0;
+            case "gt" -> Math.abs(x - y) > Short.MAX_VALUE ? Integer.MIN_VALUE : x > y ? -1 : 0;
+            case "lt" -> Math.abs(x - y) > Short.MAX_VALUE ? Integer.MIN_VALUE : x < y ? -1 : 0;
+            default -> throw new IllegalArgumentException("Not a foldable operation: " + op);
+        };
+        return result >= -Short.MAX_VALUE && result <= Short.MAX_VALUE ? result : null;
+    }
+
+    private boolean isVariable(int i) {
+        return i >= 0 && code.get(i).startsWith("push ") && !code.get(i).startsWith("push constant ");
+    }
+
+    /**
+     * Returns {value, length} if the code just before {@code end} pushes a constant, either
+     * {@code push constant c} or {@code push constant c; neg}.
+     */
+    private int[] constantAt(int end) {
+        if (end >= 1 && code.get(end - 1).startsWith("push constant ")) {
+            return new int[]{Integer.parseInt(code.get(end - 1).substring(14)), 1};
+        }
+        if (end >= 2 && code.get(end - 1).equals("neg") && code.get(end - 2).startsWith("push constant ")) {
+            return new int[]{-Integer.parseInt(code.get(end - 2).substring(14)), 2};
+        }
+        return null;
+    }
+
+    private static List<String> constant(Integer value) {
+        if (value == null) {
+            return null;
+        }
+        return value >= 0 ? List.of("push constant " + value) : List.of("push constant " + -value, "neg");
+    }
+
+    // replaces code[i] with edits.get(i), keeping its line
+    private boolean apply(Map<Integer, List<String>> edits) {
+        if (edits.isEmpty()) {
+            return false;
+        }
+        List<String> edited = new ArrayList<>(code.size());
+        List<Integer> editedLines = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            List<String> replacement = edits.getOrDefault(i, List.of(code.get(i)));
+            edited.addAll(replacement);
+            editedLines.addAll(Collections.nCopies(replacement.size(), lines.get(i)));
+        }
+        code = edited;
+        lines = editedLines;
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * A problem found while compiling one source. {@code line} and {@code column} start at 1 and are 0 when the
+ * problem has no position in the source (e.g. the file could not be read).
+ */
+public record Diagnostic(String source, int line, int column, String message) {
+    @Override
+    public String toString() {
+        if (line == 0) {
+            return source + ": " + message;
+        }
+        return source + ":" + line + ":" + column + ": " + message;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How often the functions and branches of a program ran, to point the optimizations at the code that matters.
+ * Written by {@code VMEmulator --write-profile}; the text format is line based, so other tools can produce it too:
+ * <pre>
+ * # comment
+ * call &lt;function&gt; &lt;calls&gt;
+ * branch &lt;function&gt; &lt;label&gt; &lt;taken&gt; &lt;not taken&gt;
+ * </pre>
+ * {@code function} is the VM name, e.g. {@code Main.main}. A branch is the {@code if-goto <label>} in that function.
+ * The layouts chosen by {@code --optimize-loops} and the profile give an inverted branch a label of its own, so a
+ * profile can be recorded from any build. Repeated entries add up, so profiles of several runs can simply be
+ * concatenated.
+ * <p>
+ * A count is hot if it is at least 1% of the largest count in the profile.
+ */
+public class ExecutionProfile {
+    private static final int HOT_PERCENT = 1;
+
+    private final Map<String, Long> calls = new TreeMap<>();
+    private final Map<String, Branch> branches = new TreeMap<>();
+    private long maxCount = 0;
+
+    public record Branch(long taken, long notTaken) {
+        public long executions() {
+            return taken + notTaken;
+        }
+    }
+
+    public void addCalls(String function, long count) {
+        maxCount = Math.max(maxCount, calls.merge(function, count, Long::sum));
+    }
+
+    public void addBranch(String function, String label, long taken, long notTaken) {
+        Branch branch = branches.merge(function + " " + label, new Branch(taken, notTaken),
+                (x, y) -> new Branch(x.taken + y.taken, x.notTaken + y.notTaken));
+        maxCount = Math.max(maxCount, branch.executions());
+    }
+
+    public long getCalls(String function) {
+        return calls.getOrDefault(function, 0L);
+    }
+
+    /**
+     * Returns the counts of {@code if-goto label} in {@code function}, or null if it never ran.
+     */
+    public Branch getBranch(String function, String label) {
+        return branches.get(function + " " + label);
+    }
+
+    public boolean isHot(long count) {
+        return count > 0 && count * 100 >= maxCount * HOT_PERCENT;
+    }
+
+    public static ExecutionProfile read(Path path) throws IOException {
+        return parse(Files.readString(path));
+    }
+
+    /**
+     * Parses the text form. Throws IllegalArgumentException, with the line number, on a malformed line.
+     */
+    public static ExecutionProfile parse(String text) {
+        ExecutionProfile profile = new ExecutionProfile();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            try {
+                if (parts[0].equals("call") && parts.length == 3) {
+                    profile.addCalls(parts[1], parseCount(parts[2]));
+                } else if (parts[0].equals("branch") && parts.length == 5) {
+                    profile.addBranch(parts[1], parts[2], parseCount(parts[3]), parseCount(parts[4]));
+                } else {
+                    throw new IllegalArgumentException("expected 'call' or 'branch' entry");
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid profile line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return profile;
+    }
+
+    private static long parseCount(String count) {
+        long value = Long.parseLong(count);
+        if (value < 0) {
+            throw new IllegalArgumentException("negative count " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("# call <function> <calls>\n");
+        for (Map.Entry<String, Long> entry : calls.entrySet()) {
+            sb.append("call ").append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        sb.append("# branch <function> <label> <taken> <not taken>\n");
+        for (Map.Entry<String, Branch> entry : branches.entrySet()) {
+            Branch branch = entry.getValue();
+            sb.append("branch ").append(entry.getKey()).append(' ').append(branch.taken).append(' ')
+                    .append(branch.notTaken).append('\n');
+        }
+        return sb.toString();
+    }
+}
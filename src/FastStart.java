@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The training run of {@code jackc --train}: compiles a sample corpus once in every output mode, so the JVM loads
+ * every class a real compile needs. {@code jackc} runs this with {@code -XX:ArchiveClassesAtExit}, and later launches
+ * map the archived classes instead of loading and verifying them again.
+ */
+public class FastStart {
+    private static final List<List<String>> MODES = List.of(
+            List.of(),
+            List.of("--source-map", "--virtual-threads"),
+            List.of("--output-archive"),
+            List.of("--inline", "--optimize-loops", "--propagate-constants", "--eliminate-subexpressions"),
+            List.of("--asm", "--inline", "--optimize-loops", "--propagate-constants", "--eliminate-subexpressions"));
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 || !Files.isDirectory(Path.of(args[0]))) {
+            System.out.printf("Usage: java %s <directory of .jack files>", FastStart.class.getName());
+            System.exit(1);
+        }
+
+        // the corpus is compiled in a copy, so its directory gets no output
+        Path work = Files.createTempDirectory("jack-fast-start");
+        int status = 0;
+        try {
+            try (Stream<Path> files = Files.list(Path.of(args[0]))) {
+                for (Path file : files.filter(f -> f.toString().endsWith(".jack")).toList()) {
+                    Files.copy(file, work.resolve(file.getFileName()));
+                }
+            }
+            for (List<String> mode : MODES) {
+                String[] compilerArgs = Stream.concat(mode.stream(), Stream.of(work.toString())).toArray(String[]::new);
+                // every mode still runs after a failure, and the copy is deleted before exiting
+                status = Math.max(status, JackCompiler.run(compilerArgs));
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(work)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * Translates the VM command stream straight into Hack assembly, skipping the .vm text and the separate VM
+ * translator. To keep the ROM image small, the long sequences (call, return and the eq/gt/lt comparisons)
+ * live once in shared routines written by {@link #writeBootstrap()}; every other command is expanded inline.
+ * <p>
+ * Every class is translated on its own, so a complete program is the bootstrap followed by the output of
+ * every class, in any order.
+ */
+public class HackAsmWriter extends VMWriter {
+    private static final String CALL = "$CALL";
+    private static final String RETURN = "$RETURN";
+    private static final String EQ = "$EQ";
+    private static final String GT = "$GT";
+    private static final String LT = "$LT";
+    private static final String PUSH_D = "@SP\nAM=M+1\nA=A-1\nM=D\n";
+    private static final String POP_D = "@SP\nAM=M-1\nD=M\n";
+
+    // prefix of static variables, the same file name the VM translator would use
+    private final String fileName;
+    private String currentFunction = "";
+    private int returnCount = 0;
+
+    public HackAsmWriter(OutputStream out, String fileName) {
+        super(out);
+        this.fileName = fileName;
+    }
+
+    /**
+     * Writes the program entry point (SP = 256, call Sys.init) and the shared routines. Must come first in the program.
+     */
+    public void writeBootstrap() throws IOException {
+        write("@256\nD=A\n@SP\nM=D\n");
+        currentFunction = "$bootstrap";
+        writeCall("Sys.init", 0);
+        // Sys.init is not supposed to return, but never run into the shared routines if it does
+        write("(" + currentFunction + "$halt)\n@" + currentFunction + "$halt\n0;JMP\n");
+
+        // call: R13 = callee, R14 = return address, D = nArgs
+        write("(" + CALL + ")\n@R15\nM=D\n");
+        write("@R14\nD=M\n" + PUSH_D);
+        for (String pointer : new String[]{"LCL", "ARG", "THIS", "THAT"}) {
+            write("@" + pointer + "\nD=M\n" + PUSH_D);
+        }
+        // ARG = SP - 5 - nArgs, LCL = SP
+        write("@R15\nD=M\n@5\nD=D+A\n@SP\nD=M-D\n@ARG\nM=D\n@SP\nD=M\n@LCL\nM=D\n");
+        write("@R13\nA=M\n0;JMP\n");
+
+        // return: R13 = frame, R14 = return address
+        write("(" + RETURN + ")\n@LCL\nD=M\n@R13\nM=D\n@5\nA=D-A\nD=M\n@R14\nM=D\n");
+        write("@SP\nAM=M-1\nD=M\n@ARG\nA=M\nM=D\n@ARG\nD=M+1\n@SP\nM=D\n");
+        for (String pointer : new String[]{"THAT", "THIS", "ARG", "LCL"}) {
+            write("@R13\nAM=M-1\nD=M\n@" + pointer + "\nM=D\n");
+        }
+        write("@R14\nA=M\n0;JMP\n");
+
+        // comparisons: D = return address, x and y on the stack are replaced by the result
+        writeComparison(EQ, "JEQ");
+        writeComparison(GT, "JGT");
+        writeComparison(LT, "JLT");
+        flush();
+    }
+
+    private void writeComparison(String routine, String jump) throws IOException {
+        write("(" + routine + ")\n@R15\nM=D\n@SP\nAM=M-1\nD=M\nA=A-1\nD=M-D\nM=-1\n"
+                + "@" + routine + "$END\nD;" + jump + "\n@SP\nA=M-1\nM=0\n"
+                + "(" + routine + "$END)\n@R15\nA=M\n0;JMP\n");
+    }
+
+    @Override
+    public void writePush(Segment segment, int index) throws IOException {
+        switch (segment) {
+            case CONST -> {
+                if (index == 0 || index == 1) {
+                    write("@SP\nAM=M+1\nA=A-1\nM=" + index + "\n");
+                } else {
+                    write("@" + index + "\nD=A\n" + PUSH_D);
+                }
+            }
+            case LOCAL, ARG, THIS, THAT -> write(segmentAddress(segment, index) + "D=M\n" + PUSH_D);
+            default -> write("@" + fixedAddress(segment, index) + "\nD=M\n" + PUSH_D);
+        }
+    }
+
+    @Override
+    public void writePop(Segment segment, int index) throws IOException {
+        switch (segment) {
+            case CONST -> throw new IllegalArgumentException("Cannot pop to constant");
+            case LOCAL, ARG, THIS, THAT -> {
+                if (index <= 1) {
+                    write(POP_D + segmentAddress(segment, index) + "M=D\n");
+                } else {
+                    write("@" + pointerOf(segment) + "\nD=M\n@" + index + "\nD=D+A\n@R13\nM=D\n" + POP_D + "@R13\nA=M\nM=D\n");
+                }
+            }
+            default -> write(POP_D + "@" + fixedAddress(segment, index) + "\nM=D\n");
+        }
+    }
+
+    // leaves A pointing at segment[index]
+    private String segmentAddress(Segment segment, int index) {
+        return switch (index) {
+            case 0 -> "@" + pointerOf(segment) + "\nA=M\n";
+            case 1 -> "@" + pointerOf(segment) + "\nA=M+1\n";
+            default -> "@" + pointerOf(segment) + "\nD=M\n@" + index + "\nA=D+A\n";
+        };
+    }
+
+    private static String pointerOf(Segment segment) {
+        return switch (segment) {
+            case LOCAL -> "LCL";
+            case ARG -> "ARG";
+            case THIS -> "THIS";
+            case THAT -> "THAT";
+            default -> throw new IllegalArgumentException("Not a pointer segment: " + segment);
+        };
+    }
+
+    private String fixedAddress(Segment segment, int index) {
+        return switch (segment) {
+            case STATIC -> fileName + "." + index;
+            case TEMP -> "R" + (5 + index);
+            case POINTER -> index == 0 ? "THIS" : "THAT";
+            default -> throw new IllegalArgumentException("Not a fixed segment: " + segment);
+        };
+    }
+
+    @Override
+    public void writeArithmetic(Command command) throws IOException {
+        switch (command) {
+            case ADD -> write(POP_D + "A=A-1\nM=D+M\n");
+            case SUB -> write(POP_D + "A=A-1\nM=M-D\n");
+            case AND -> write(POP_D + "A=A-1\nM=D&M\n");
+            case OR -> write(POP_D + "A=A-1\nM=D|M\n");
+            case NEG -> write("@SP\nA=M-1\nM=-M\n");
+            case NOT -> write("@SP\nA=M-1\nM=!M\n");
+            case EQ -> writeSharedCall(EQ);
+            case GT -> writeSharedCall(GT);
+            case LT -> writeSharedCall(LT);
+        }
+    }
+
+    private void writeSharedCall(String routine) throws IOException {
+        String returnLabel = newReturnLabel();
+        write("@" + returnLabel + "\nD=A\n@" + routine + "\n0;JMP\n(" + returnLabel + ")\n");
+    }
+
+    @Override
+    public void writeLabel(String label) throws IOException {
+        write("(" + currentFunction + "$" + label + ")\n");
+    }
+
+    @Override
+    public void writeGoto(String label) throws IOException {
+        write("@" + currentFunction + "$" + label + "\n0;JMP\n");
+    }
+
+    @Override
+    public void writeIf(String label) throws IOException {
+        write(POP_D + "@" + currentFunction + "$" + label + "\nD;JNE\n");
+    }
+
+    @Override
+    public void writeCall(String name, int nArgs) throws IOException {
+        String returnLabel = newReturnLabel();
+        write("@" + name + "\nD=A\n@R13\nM=D\n@" + returnLabel + "\nD=A\n@R14\nM=D\n"
+                + "@" + nArgs + "\nD=A\n@" + CALL + "\n0;JMP\n(" + returnLabel + ")\n");
+    }
+
+    @Override
+    public void writeFunction(String name, int nVars) throws IOException {
+        currentFunction = name;
+        returnCount = 0;
+        StringBuilder sb = new StringBuilder("(" + name + ")\n");
+        if (nVars > 0) {
+            // zero the locals in one sweep and bump SP once
+            sb.append("@SP\nA=M\n");
+            sb.append("M=0\nA=A+1\n".repeat(nVars));
+            sb.append("D=A\n@SP\nM=D\n");
+        }
+        write(sb.toString());
+    }
+
+    @Override
+    public void writeReturn() throws IOException {
+        write("@" + RETURN + "\n0;JMP\n");
+    }
+
+    private String newReturnLabel() {
+        return currentFunction + "$ret." + returnCount++;
+    }
+
+    /**
+     * Translates VM code in text form, e.g. precompiled OS classes, through the same command stream.
+     */
+    public void writeVM(Reader vmCode) throws IOException {
+        BufferedReader br = new BufferedReader(vmCode);
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.contains("//")) {
+                line = line.substring(0, line.indexOf("//"));
+            }
+            String[] parts = line.trim().split("\\s+");
+            switch (parts[0]) {
+                case "" -> {
+                }
+                case "push" -> writePush(Segment.fromName(parts[1]), Integer.parseInt(parts[2]));
+                case "pop" -> writePop(Segment.fromName(parts[1]), Integer.parseInt(parts[2]));
+                case "label" -> writeLabel(parts[1]);
+                case "goto" -> writeGoto(parts[1]);
+                case "if-goto" -> writeIf(parts[1]);
+                case "function" -> writeFunction(parts[1], Integer.parseInt(parts[2]));
+                case "call" -> writeCall(parts[1], Integer.parseInt(parts[2]));
+                case "return" -> writeReturn();
+                default -> writeArithmetic(Command.fromName(parts[0]));
+            }
+        }
+        flush();
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Whole-program pass that replaces calls to small leaf subroutines, like {@code method int getX() { return x; }},
+ * with their bodies. Works on the VM code of all classes of a program: first {@link #collect} every class,
+ * then {@link #inline} every class.
+ * <p>
+ * A subroutine is inlined if it has no locals, no calls, no branches and a single return, and if its body is at
+ * most {@code maxInstructions} long. The arguments are moved from the stack into temp slots; a method's fields are
+ * reached through {@code pointer 1}/{@code that} instead of {@code pointer 0}/{@code this}, so the caller's
+ * THIS is untouched. Statics can only be inlined into the class that owns them.
+ * <p>
+ * With an {@link ExecutionProfile}, only calls to subroutines that are hot in it are inlined, which keeps the code of
+ * the rest of the program small.
+ */
+public class Inliner {
+    // temp 0..7, one per argument
+    private static final int MAX_ARGS = 8;
+
+    private final int maxInstructions;
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private final ExecutionProfile profile;
+
+    public Inliner(int maxInstructions) {
+        this(maxInstructions, null);
+    }
+
+    public Inliner(int maxInstructions, ExecutionProfile profile) {
+        this.maxInstructions = maxInstructions;
+        this.profile = profile;
+    }
+
+    /**
+     * Finds the inlinable subroutines of one class.
+     */
+    public void collect(String fileName, String vmCode) {
+        List<String> function = null;
+        for (String line : vmCode.split("\n")) {
+            if (line.startsWith("function ")) {
+                addCandidate(fileName, function);
+                function = new ArrayList<>();
+            }
+            if (function != null && !line.isBlank()) {
+                function.add(line.trim());
+            }
+        }
+        addCandidate(fileName, function);
+    }
+
+    private void addCandidate(String fileName, List<String> function) {
+        if (function == null) {
+            return;
+        }
+        String[] header = function.get(0).split(" ");
+        if (!header[2].equals("0")) {
+            return;
+        }
+        int returnIndex = function.indexOf("return");
+        if (returnIndex < 0 || function.lastIndexOf("return") != returnIndex) {
+            return;
+        }
+        // everything after the only return is unreachable, as there are no labels to jump to
+        List<String> body = new ArrayList<>(function.subList(1, returnIndex));
+        boolean method = body.size() >= 2 && body.get(0).equals("push argument 0") && body.get(1).equals("pop pointer 0");
+        if (method) {
+            body = body.subList(2, body.size());
+        }
+        if (body.size() > maxInstructions) {
+            return;
+        }
+        boolean usesStatic = false;
+        for (String instruction : body) {
+            String[] parts = instruction.split(" ");
+            switch (parts[0]) {
+                case "label", "goto", "if-goto", "call", "function" -> {
+                    return;
+                }
+                case "push", "pop" -> {
+                    switch (parts[1]) {
+                        case "local", "temp" -> {
+                            return;
+                        }
+                        case "argument" -> {
+                            if (Integer.parseInt(parts[2]) >= MAX_ARGS) {
+                                return;
+                            }
+                        }
+                        case "static" -> usesStatic = true;
+                        case "this", "that", "pointer" -> {
+                            // a method owns this/pointer 0 and borrows that/pointer 1; a function may only use that
+                            boolean thisSide = parts[1].equals("this") || instruction.endsWith("pointer 0");
+                            if (method == thisSide) {
+                                continue;
+                            }
+                            if (method || thisSide) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        String name = header[1];
+        candidates.put(name, new Candidate(fileName, method, usesStatic, body));
+    }
+
+    public boolean isInlinable(String name) {
+        return candidates.containsKey(name);
+    }
+
+    /**
+     * Returns the VM code of one class with the calls to inlinable subroutines expanded. If {@code sourceMap} is not
+     * null it is updated in place, every inlined instruction taking the line of its call.
+     */
+    public String inline(String fileName, String vmCode, SourceMap sourceMap) {
+        StringBuilder sb = new StringBuilder();
+        SourceMap inlinedMap = sourceMap == null ? null : new SourceMap();
+        int instruction = 0;
+        int emitted = 0;
+        for (String line : vmCode.split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> expansion = expand(fileName, line.trim());
+            for (String inlined : expansion == null ? List.of(line) : expansion) {
+                if (inlinedMap != null) {
+                    inlinedMap.record(emitted, sourceMap.lineOf(instruction));
+                }
+                sb.append(inlined).append('\n');
+                emitted++;
+            }
+            instruction++;
+        }
+        if (sourceMap != null) {
+            sourceMap.replaceWith(inlinedMap);
+        }
+        return sb.toString();
+    }
+
+    private List<String> expand(String fileName, String instruction) {
+        if (!instruction.startsWith("call ")) {
+            return null;
+        }
+        String[] parts = instruction.split(" ");
+        Candidate candidate = candidates.get(parts[1]);
+        int nArgs = Integer.parseInt(parts[2]);
+        if (candidate == null || nArgs > MAX_ARGS || (candidate.usesStatic && !candidate.fileName.equals(fileName))
+                || (candidate.method && nArgs == 0)) {
+            return null;
+        }
+        if (profile != null && !profile.isHot(profile.getCalls(parts[1]))) {
+            return null;
+        }
+        List<String> expansion = new ArrayList<>();
+        for (int i = nArgs - 1; i >= 0; i--) {
+            expansion.add("pop temp " + i);
+        }
+        if (candidate.method) {
+            expansion.add("push temp 0");
+            expansion.add("pop pointer 1");
+        }
+        for (String line : candidate.body) {
+            String[] body = line.split(" ");
+            if (body.length == 3) {
+                switch (body[1]) {
+                    case "argument" -> {
+                        if (Integer.parseInt(body[2]) >= nArgs) {
+                            return null;
+                        }
+                        line = body[0] + " temp " + body[2];
+                    }
+                    case "this" -> line = body[0] + " that " + body[2];
+                    case "pointer" -> line = body[0] + " pointer 1";
+                }
+            }
+            expansion.add(line);
+        }
+        // the last argument popped is temp 0; if it is pushed right back and never read again, keep it on the stack
+        int last = nArgs - 1;
+        if (nArgs > 0 && expansion.size() > nArgs && expansion.get(last + 1).equals("push temp 0")
+                && expansion.subList(last + 2, expansion.size()).stream().noneMatch(s -> s.endsWith(" temp 0"))) {
+            expansion.remove(last + 1);
+            expansion.remove(last);
+        }
+        return expansion;
+    }
+
+    private record Candidate(String fileName, boolean method, boolean usesStatic, List<String> body) {
+    }
+}
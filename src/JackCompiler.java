@@ -1,57 +1,253 @@
 import java.io.*;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 public class JackCompiler {
-    private static void usage() {
-        System.out.printf("Usage: java %s <inputfile[.jack] | directory>", JackCompiler.class.getName());
-        System.exit(1);
+    private static int usage() {
+        System.out.printf("Usage: java %s %s [--virtual-threads] [--output-archive] <inputfile[.jack] | directory | archive[.zip|.jar]>", JackCompiler.class.getName(), CompilerOptions.USAGE);
+        return 1;
     }
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            usage();
-            return;
+        int status = run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Compiles like {@link #main}, but returns the exit status instead of exiting, so a caller can clean up first.
+     */
+    static int run(String[] args) {
+        CompilerOptions options = new CompilerOptions();
+        String input = null;
+        boolean virtualThreads = false;
+        boolean outputArchive = false;
+        for (String arg : args) {
+            try {
+                if (options.parse(arg)) {
+                    continue;
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return usage();
+            }
+            // one virtual thread per file, for slow filesystems
+            if (arg.equals("--virtual-threads")) {
+                virtualThreads = true;
+                continue;
+            }
+            // all .vm files in one output/<name>.zip
+            if (arg.equals("--output-archive")) {
+                outputArchive = true;
+                continue;
+            }
+            if (arg.startsWith("--") || input != null) {
+                return usage();
+            }
+            input = arg;
+        }
+        if (input == null) {
+            return usage();
         }
 
         // check if it is a directory
-        File file = new File(args[0]);
+        File file = new File(input);
+
+        // the classes to compile, and the precompiled classes (e.g. the OS) to link with them for --asm
+        List<BatchCompiler.Source> sources = new ArrayList<>();
+        List<BatchCompiler.Source> precompiled = new ArrayList<>();
+        String programName;
+        if (file.isFile() && isArchive(file.getName())) {
+            // the entries are read straight from the archive, nothing is extracted
+            programName = file.getName().substring(0, file.getName().lastIndexOf('.'));
+            File outputDir = new File(file.getAbsoluteFile().getParentFile(), "output");
+            try (ZipFile zipFile = new ZipFile(file)) {
+                // the output is named after the class alone, so a/Main.jack and b/Main.jack would overwrite each other
+                Map<String, String> entryOfClass = new HashMap<>();
+                boolean duplicates = false;
+                for (ZipEntry entry : zipFile.stream().toList()) {
+                    boolean jack = entry.getName().endsWith(".jack");
+                    if (!jack && !entry.getName().endsWith(".vm")) {
+                        continue;
+                    }
+                    BatchCompiler.Source source = BatchCompiler.Source.of(zipFile, entry);
+                    String previous = entryOfClass.putIfAbsent((jack ? ".jack " : ".vm ") + source.name(), entry.getName());
+                    if (previous != null) {
+                        System.err.println(new Diagnostic(entry.getName(), 0, 0,
+                                "Class " + source.name() + " is already defined by " + previous));
+                        duplicates = true;
+                    } else if (jack) {
+                        sources.add(source);
+                    } else {
+                        precompiled.add(source);
+                    }
+                }
+                if (duplicates) {
+                    return 1;
+                }
+                if (sources.isEmpty()) {
+                    System.out.println("No .jack files found in the archive.");
+                    return usage();
+                }
+                return build(sources, precompiled, programName, outputDir, options, virtualThreads, outputArchive) ? 0 : 1;
+            } catch (IOException e) {
+                System.out.println("Failed to read " + file + ": " + e.getMessage());
+                return 1;
+            }
+        }
 
         String[] inputFileNames;
         if (file.isDirectory()) {
             inputFileNames = file.list((dir, name) -> name.endsWith(".jack"));
             if (inputFileNames == null || inputFileNames.length == 0) {
                 System.out.println("No .jack files found in the directory.");
-                usage();
-                return;
+                return usage();
+            }
+            String[] vmFileNames = file.list((dir, name) -> name.endsWith(".vm"));
+            for (String vmFileName : vmFileNames == null ? new String[0] : vmFileNames) {
+                precompiled.add(BatchCompiler.Source.of(Path.of(file.getAbsolutePath(), vmFileName)));
             }
+            programName = file.getName();
         } else if (file.isFile() && file.getName().endsWith(".jack")) {
             inputFileNames = new String[]{file.getName()};
+            programName = file.getName().substring(0, file.getName().length() - 5);
         } else {
-            usage();
-            return; // This line should not be reached due to the usage() method
+            return usage();
         }
 
 
         for (String inputFileName : inputFileNames) {
             String inputFilePath = file.isDirectory() ?
                     file.getAbsolutePath() + File.separator + inputFileName : file.getAbsolutePath();
-            // Create the output directory if it doesn't exist
-            File outputDir = new File(file.getAbsolutePath() + File.separator + "output");
-            if (!outputDir.exists()) {
-                if (!outputDir.mkdirs()) {
-                    System.out.println("Failed to create output directory.");
-                    return;
+            sources.add(BatchCompiler.Source.of(Path.of(inputFilePath)));
+        }
+
+        File outputDir = new File(file.getAbsolutePath() + File.separator + "output");
+        return build(sources, precompiled, programName, outputDir, options, virtualThreads, outputArchive) ? 0 : 1;
+    }
+
+    private static boolean isArchive(String fileName) {
+        return fileName.endsWith(".zip") || fileName.endsWith(".jar");
+    }
+
+    /**
+     * Compiles {@code sources} into {@code outputDir}. Returns false if anything failed; the errors are printed.
+     */
+    private static boolean build(List<BatchCompiler.Source> sources, List<BatchCompiler.Source> precompiled,
+                                 String programName, File outputDir, CompilerOptions options,
+                                 boolean virtualThreads, boolean outputArchive) {
+        // Create the output directory if it doesn't exist
+        if (!outputDir.exists()) {
+            if (!outputDir.mkdirs()) {
+                System.out.println("Failed to create output directory.");
+                return false;
+            }
+        }
+
+        // --asm writes a single program anyway
+        File archiveFile = new File(outputDir, programName + ".zip");
+        try (ZipOutputStream archive = outputArchive && !options.isAsm() ?
+                new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile))) : null) {
+            CompilationPipeline.Sink sink = archive == null ?
+                    result -> writeResult(outputDir, result) : result -> writeEntry(archive, result);
+
+            // every file is compiled on its own, so one broken class does not hide the errors of the others
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            List<BatchCompiler.Result> results;
+            if (options.isAsm() || options.isInline()) {
+                // whole-program output, written once every class is compiled
+                try (BatchCompiler compiler = new BatchCompiler(parallelism, options)) {
+                    results = compiler.compile(sources);
+                }
+                if (!options.isAsm()) {
+                    results.replaceAll(result -> CompilationPipeline.write(sink, result));
                 }
+            } else if (virtualThreads) {
+                results = new VirtualThreadCompiler(parallelism, options).run(sources, sink);
+            } else {
+                // every .vm file is written as soon as it is compiled, while the next ones are read and compiled
+                results = new CompilationPipeline(parallelism, options).run(sources, sink);
             }
-            String outputFileName = outputDir + File.separator + inputFileName.substring(0, inputFileName.length() - 5) + ".vm";
 
-            try (InputStream inputStream = new FileInputStream(inputFilePath)) {
-                try (OutputStream outputStream = new FileOutputStream(outputFileName)) {
-                    new CompilationEngine(inputStream, outputStream).compileClass();
+            boolean failed = false;
+            for (BatchCompiler.Result result : results) {
+                if (!result.isSuccess()) {
+                    result.diagnostics().forEach(System.err::println);
+                    failed = true;
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            }
+            if (options.isAsm() && !failed) {
+                failed = !writeAsmProgram(programName, outputDir, results, precompiled);
+            }
+            return !failed;
+        } catch (IOException e) {
+            System.err.println("Failed to write " + archiveFile + ": " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void writeResult(File outputDir, BatchCompiler.Result result) throws IOException {
+        String outputFileName = outputDir + File.separator + result.name() + ".vm";
+        try (OutputStream outputStream = new FileOutputStream(outputFileName)) {
+            outputStream.write(result.output().getBytes());
+        }
+        if (result.sourceMap() != null) {
+            try (OutputStream mapStream = new FileOutputStream(outputFileName + ".map")) {
+                mapStream.write(result.sourceMap().getBytes());
+            }
+        }
+    }
+
+    private static void writeEntry(ZipOutputStream archive, BatchCompiler.Result result) throws IOException {
+        // the virtual thread mode writes from many threads
+        synchronized (archive) {
+            archive.putNextEntry(new ZipEntry(result.name() + ".vm"));
+            archive.write(result.output().getBytes());
+            archive.closeEntry();
+            if (result.sourceMap() != null) {
+                archive.putNextEntry(new ZipEntry(result.name() + ".vm.map"));
+                archive.write(result.sourceMap().getBytes());
+                archive.closeEntry();
             }
         }
+    }
 
+    /**
+     * Links the bootstrap, the compiled classes and the precompiled classes that were not compiled again (e.g. the OS)
+     * into a single Hack program named after the input.
+     */
+    private static boolean writeAsmProgram(String programName, File outputDir, List<BatchCompiler.Result> results,
+                                           List<BatchCompiler.Source> precompiled) {
+        String outputFileName = outputDir + File.separator + programName + ".asm";
+        try (OutputStream outputStream = new FileOutputStream(outputFileName)) {
+            new HackAsmWriter(outputStream, programName).writeBootstrap();
+            List<String> compiled = new ArrayList<>();
+            for (BatchCompiler.Result result : results) {
+                outputStream.write(result.output().getBytes());
+                compiled.add(result.name());
+            }
+            for (BatchCompiler.Source source : precompiled) {
+                if (compiled.contains(source.name())) {
+                    continue;
+                }
+                try (Reader reader = new InputStreamReader(source.open())) {
+                    new HackAsmWriter(outputStream, source.name()).writeVM(reader);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to write " + outputFileName + ": " + e.getMessage());
+            return false;
+        }
     }
-}
\ No newline at end of file
+}
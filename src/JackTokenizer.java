@@ -1,15 +1,27 @@
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Serial;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class JackTokenizer {
+    private static final String SYMBOLS = "{}()[].,;+-*/&|<>=~";
+    // a position packs the line into the high bits and the column into the low COLUMN_BITS of one int
+    private static final int COLUMN_BITS = 12;
+    private static final int MAX_COLUMN = (1 << COLUMN_BITS) - 1;
+    private static final int MAX_LINE = (1 << (32 - COLUMN_BITS)) - 1;
+
     private String currentToken;
     private TokenType tokenType;
-    private final Queue<String> tokenQueue = new ArrayDeque<>();
-    private static final Pattern TOKEN_PATTERN = Pattern.compile("\"[^\"]*\"|\\S+");
+    private int currentPosition;
+    private final List<String> tokens = new ArrayList<>();
+    // packed source position of every token, parallel to 'tokens'
+    private int[] positions = new int[256];
+    private int nextToken = 0;
+    // packed position just past the last character of the input
+    private int endPosition = position(1, 1);
+    // problems found while splitting the input into tokens
+    private final List<Problem> problems = new ArrayList<>();
 
 
     public JackTokenizer(InputStream inputStream) {
@@ -18,46 +30,48 @@ public class JackTokenizer {
         // Three types of comments: single line, multi-line, and block comments
         // /* comment until */, /** API comment until */ and // comment until new line
         BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
-        ArrayList<String> lines = new ArrayList<>();
-        final boolean[] multiLineComment = {false};
-        br.lines().forEach(line -> {
-            // Remove comments
-            line = line.trim();
-            if (multiLineComment[0]) {
-                if (line.contains("*/")) {
-                    multiLineComment[0] = false;
-                    line = line.substring(line.indexOf("*/") + 2);
+        boolean multiLineComment = false;
+        int lineNumber = 0;
+        for (Iterator<String> it = br.lines().iterator(); it.hasNext(); ) {
+            String line = it.next();
+            lineNumber++;
+            endPosition = position(lineNumber, line.length() + 1);
+            int i = 0;
+            while (i < line.length()) {
+                char c = line.charAt(i);
+                if (multiLineComment) {
+                    int end = line.indexOf("*/", i);
+                    multiLineComment = end < 0;
+                    i = end < 0 ? line.length() : end + 2;
+                } else if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (line.startsWith("//", i)) {
+                    i = line.length(); // Skip the rest of the line
+                } else if (line.startsWith("/*", i)) {
+                    multiLineComment = true;
+                    i += 2;
+                } else if (c == '"') {
+                    // string constants run to the closing quote on the same line
+                    int end = line.indexOf('"', i + 1);
+                    if (end < 0) {
+                        // closed at the end of the line, so the rest of the input is still tokenized as usual
+                        problems.add(new Problem(position(lineNumber, i + 1), "Unterminated string constant"));
+                        addToken(line.substring(i) + '"', lineNumber, i + 1);
+                        i = line.length();
+                    } else {
+                        addToken(line.substring(i, end + 1), lineNumber, i + 1);
+                        i = end + 1;
+                    }
+                } else if (SYMBOLS.indexOf(c) >= 0) {
+                    addToken(String.valueOf(c), lineNumber, i + 1);
+                    i++;
                 } else {
-                    return; // Skip the entire line
-                }
-            } else if (line.startsWith("/*") && !line.endsWith("*/")) {
-                multiLineComment[0] = true;
-                line = line.substring(0, line.indexOf("/*"));
-            } else if (line.contains("//")) {
-                line = line.substring(0, line.indexOf("//"));
-            }
-            line = line.replaceAll("/\\*.*?\\*/", ""); // Remove block comments
-
-            if (!line.isBlank()) {
-                lines.add(line);
-            }
-        });
-        for (String line : lines) {
-            // add spaces around symbols unless they are part of a string constant
-            line = line.replaceAll("([{}()\\[\\].,;+\\-*/&|<>=~])", " $1 ");
-
-
-            Matcher matcher = TOKEN_PATTERN.matcher(line);
-            List<String> tokens = new ArrayList<>();
-
-            while (matcher.find()) {
-                tokens.add(matcher.group());
-            }
-
-            for (String token : tokens) {
-                if (!token.isBlank()) {
-                    // Add the token to the queue
-                    tokenQueue.add(token);
+                    int start = i;
+                    while (i < line.length() && !Character.isWhitespace(line.charAt(i))
+                            && SYMBOLS.indexOf(line.charAt(i)) < 0 && line.charAt(i) != '"') {
+                        i++;
+                    }
+                    addToken(line.substring(start, i), lineNumber, start + 1);
                 }
             }
         }
@@ -66,25 +80,113 @@ public class JackTokenizer {
         this.tokenType = null;
     }
 
+    private void addToken(String token, int line, int column) {
+        if (tokens.size() == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[tokens.size()] = position(line, column);
+        tokens.add(token);
+    }
+
+    /**
+     * A malformed token at a packed {@link #position(int, int)}. The token is still returned by {@link #advance()},
+     * repaired as far as possible.
+     */
+    public record Problem(int position, String message) {
+    }
+
+    public List<Problem> problems() {
+        return this.problems;
+    }
+
     public boolean hasMoreTokens() {
         // Check if there are more tokens to read
-        try {
-            return !this.tokenQueue.isEmpty();
-        } catch (Exception e) {
-            return false;
-        }
+        return this.nextToken < this.tokens.size();
     }
 
     public void advance() {
         // Read the next token from the input stream
         if (this.hasMoreTokens()) {
-            this.currentToken = this.tokenQueue.poll();
+            this.currentToken = this.tokens.get(this.nextToken);
+            this.currentPosition = this.positions[this.nextToken];
+            this.nextToken++;
+            // stays null if the token cannot be classified
+            this.tokenType = null;
             this.tokenType = getTokenType();
         } else {
-            throw new IllegalStateException("No more tokens to read");
+            throw new EndOfInput();
+        }
+    }
+
+    /**
+     * Thrown by {@link #advance()} past the last token. Nothing follows it, so there is nothing to recover on.
+     */
+    public static final class EndOfInput extends IllegalStateException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        EndOfInput() {
+            super("Unexpected end of file");
         }
     }
 
+    /**
+     * Number of tokens in the whole input.
+     */
+    public int tokenCount() {
+        return this.tokens.size();
+    }
+
+    /**
+     * Number of tokens consumed by {@link #advance()} so far.
+     */
+    public int tokensRead() {
+        return this.nextToken;
+    }
+
+    /**
+     * Source line of the current token, starting at 1 (0 before the first {@link #advance()}).
+     */
+    public int line() {
+        return lineOf(this.currentPosition);
+    }
+
+    /**
+     * Source column of the current token, starting at 1 (0 before the first {@link #advance()}).
+     */
+    public int column() {
+        return columnOf(this.currentPosition);
+    }
+
+    /**
+     * Packed position just past the end of the input, where {@link EndOfInput} is reported.
+     */
+    public int endPosition() {
+        return this.endPosition;
+    }
+
+    /**
+     * Packed position of the current token, see {@link #lineOf(int)} and {@link #columnOf(int)}.
+     */
+    public int position() {
+        return this.currentPosition;
+    }
+
+    /**
+     * Packs a 1-based line and column into one int. Lines past 1048575 and columns past 4095 are clamped.
+     */
+    public static int position(int line, int column) {
+        return Math.min(line, MAX_LINE) << COLUMN_BITS | Math.min(column, MAX_COLUMN);
+    }
+
+    public static int lineOf(int position) {
+        return position >>> COLUMN_BITS;
+    }
+
+    public static int columnOf(int position) {
+        return position & MAX_COLUMN;
+    }
+
     private TokenType getTokenType() {
         // Determine the type of the current token
         if (this.currentToken.matches("[a-zA-Z_][a-zA-Z0-9_]*")) {
@@ -0,0 +1,266 @@
+import java.util.*;
+
+/**
+ * Hoists loop-invariant expressions out of the bottom-tested loops written by
+ * {@link CompilationEngine#compileWhile()}: {@code goto COND, label BODY, ..., label COND, ..., if-goto BODY}.
+ * <p>
+ * An expression is invariant if it only reads constants, locals and arguments that the loop never stores, and
+ * statics the loop never stores and cannot change through a call to user code. Besides the arithmetic and logic
+ * commands it may call {@code Math.multiply}, {@code Math.divide} by a nonzero constant, and build a string literal
+ * with {@code String.new}/{@code String.appendChar}, in which case all iterations share one string object.
+ * Each distinct invariant expression is computed once into a new local before the loop is entered.
+ * Inner loops are handled first, so an expression can move out of several loops.
+ * <p>
+ * With an {@link ExecutionProfile}, only loops that iterated often are touched: a hoisted expression costs a local
+ * and is computed even if the loop never iterates.
+ */
+public class LoopOptimizer {
+    private static final Set<String> OS_CLASSES = Set.of("Math", "String", "Array", "Memory", "Output", "Screen",
+            "Keyboard", "Sys");
+
+    private final List<String> code = new ArrayList<>();
+    private final List<Integer> lines = new ArrayList<>();
+    private final ExecutionProfile profile;
+
+    private LoopOptimizer(String vmCode, SourceMap sourceMap, ExecutionProfile profile) {
+        this.profile = profile;
+        for (String line : vmCode.split("\n")) {
+            if (!line.isBlank()) {
+                lines.add(sourceMap == null ? 0 : sourceMap.lineOf(code.size()));
+                code.add(line.trim());
+            }
+        }
+    }
+
+    /**
+     * Returns the optimized VM code of one class. If {@code sourceMap} is not null it is updated in place; hoisted
+     * code keeps the lines it came from.
+     */
+    public static String optimize(String vmCode, SourceMap sourceMap) {
+        return optimize(vmCode, sourceMap, null);
+    }
+
+    /**
+     * Like {@link #optimize(String, SourceMap)}, but only for the loops that are hot in {@code profile}, if it is not
+     * null.
+     */
+    public static String optimize(String vmCode, SourceMap sourceMap, ExecutionProfile profile) {
+        LoopOptimizer optimizer = new LoopOptimizer(vmCode, sourceMap, profile);
+        Set<String> done = new HashSet<>();
+        int[] loop;
+        while ((loop = optimizer.findInnermostLoop(done)) != null) {
+            done.add(optimizer.code.get(loop[0]));
+            if (optimizer.isHot(loop[0])) {
+                optimizer.hoist(loop[0], loop[1]);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        SourceMap optimizedMap = new SourceMap();
+        for (int i = 0; i < optimizer.code.size(); i++) {
+            sb.append(optimizer.code.get(i)).append('\n');
+            optimizedMap.record(i, optimizer.lines.get(i));
+        }
+        if (sourceMap != null) {
+            sourceMap.replaceWith(optimizedMap);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns {body label index, if-goto index} of the smallest loop whose body label is not in {@code done}.
+     */
+    private int[] findInnermostLoop(Set<String> done) {
+        Map<String, Integer> labels = new HashMap<>();
+        int[] innermost = null;
+        for (int j = 0; j < code.size(); j++) {
+            String instruction = code.get(j);
+            if (instruction.startsWith("function ")) {
+                labels.clear();
+            } else if (instruction.startsWith("label ")) {
+                labels.put(instruction.substring(6), j);
+            } else if (instruction.startsWith("if-goto ")) {
+                Integer i = labels.get(instruction.substring(8));
+                if (i == null || i == 0 || done.contains(code.get(i)) || !code.get(i - 1).startsWith("goto ")) {
+                    continue;
+                }
+                // the loop is entered by jumping forward to its condition
+                Integer condition = labels.get(code.get(i - 1).substring(5));
+                if (condition != null && condition > i && (innermost == null || j - i < innermost[1] - innermost[0])) {
+                    innermost = new int[]{i, j};
+                }
+            }
+        }
+        return innermost;
+    }
+
+    private boolean isHot(int bodyLabel) {
+        if (profile == null) {
+            return true;
+        }
+        int function = bodyLabel;
+        while (!code.get(function).startsWith("function ")) {
+            function--;
+        }
+        String name = code.get(function).split(" ")[1];
+        // without --optimize-loops the loop exits with 'if-goto COND', it iterates when that is not taken
+        ExecutionProfile.Branch exit = profile.getBranch(name, code.get(bodyLabel - 1).substring(5));
+        // with it, the loop iterates when 'if-goto BODY' is taken
+        ExecutionProfile.Branch iterate = profile.getBranch(name, code.get(bodyLabel).substring(6));
+        return profile.isHot((exit == null ? 0 : exit.notTaken()) + (iterate == null ? 0 : iterate.taken()));
+    }
+
+    // a value on the symbolic stack, computed by code[start, end)
+    private record Value(int start, int end, boolean invariant) {
+    }
+
+    private void hoist(int bodyLabel, int ifGoto) {
+        Set<String> stored = new HashSet<>();
+        boolean callsUserCode = false;
+        for (int k = bodyLabel; k <= ifGoto; k++) {
+            String[] parts = code.get(k).split(" ");
+            if (parts[0].equals("pop")) {
+                stored.add(parts[1] + " " + parts[2]);
+            } else if (parts[0].equals("call") && !OS_CLASSES.contains(parts[1].substring(0, parts[1].indexOf('.')))) {
+                callsUserCode = true;
+            }
+        }
+
+        List<Value> hoistable = new ArrayList<>();
+        Deque<Value> stack = new ArrayDeque<>();
+        for (int k = bodyLabel + 1; k <= ifGoto; k++) {
+            String instruction = code.get(k);
+            String[] parts = instruction.split(" ");
+            switch (parts[0]) {
+                case "push" -> {
+                    String variable = parts[1] + " " + parts[2];
+                    boolean invariant = switch (parts[1]) {
+                        case "constant" -> true;
+                        case "local", "argument" -> !stored.contains(variable);
+                        case "static" -> !stored.contains(variable) && !callsUserCode;
+                        default -> false;
+                    };
+                    stack.push(new Value(k, k + 1, invariant));
+                }
+                case "pop", "if-goto", "return" -> {
+                    if (stack.isEmpty()) {
+                        return;
+                    }
+                    addHoistable(hoistable, stack.pop());
+                }
+                case "neg", "not" -> {
+                    if (stack.isEmpty()) {
+                        return;
+                    }
+                    Value operand = stack.pop();
+                    stack.push(new Value(operand.start, k + 1, operand.invariant));
+                }
+                case "add", "sub", "and", "or", "eq", "gt", "lt" -> {
+                    if (stack.size() < 2) {
+                        return;
+                    }
+                    Value y = stack.pop();
+                    Value x = stack.pop();
+                    stack.push(combine(hoistable, List.of(x, y), k, true));
+                }
+                case "call" -> {
+                    int nArgs = Integer.parseInt(parts[2]);
+                    if (stack.size() < nArgs) {
+                        return;
+                    }
+                    List<Value> args = new ArrayList<>();
+                    for (int i = 0; i < nArgs; i++) {
+                        args.add(0, stack.pop());
+                    }
+                    stack.push(combine(hoistable, args, k, isPureCall(parts[1], args)));
+                }
+                case "label", "goto" -> stack.clear();
+                default -> {
+                    // anything else (a nested function?) is not a loop we understand
+                    return;
+                }
+            }
+        }
+        if (!hoistable.isEmpty()) {
+            rewrite(bodyLabel, hoistable);
+        }
+    }
+
+    private Value combine(List<Value> hoistable, List<Value> operands, int k, boolean pure) {
+        int start = operands.isEmpty() ? k : operands.get(0).start;
+        boolean invariant = pure && operands.stream().allMatch(Value::invariant);
+        if (!invariant) {
+            // the invariant operands are as large as they get
+            for (Value operand : operands) {
+                addHoistable(hoistable, operand);
+            }
+        }
+        return new Value(start, k + 1, invariant);
+    }
+
+    private void addHoistable(List<Value> hoistable, Value value) {
+        // a single push is not worth a local
+        if (value.invariant && value.end - value.start >= 2) {
+            hoistable.add(value);
+        }
+    }
+
+    private boolean isPureCall(String name, List<Value> args) {
+        return switch (name) {
+            case "Math.multiply" -> args.size() == 2;
+            // dividing by zero has to fail inside the loop, if at all
+            case "Math.divide" -> args.size() == 2 && isConstant(args.get(1), false);
+            case "String.new" -> args.size() == 1 && isConstant(args.get(0), true);
+            case "String.appendChar" -> args.size() == 2 && code.get(args.get(0).end - 1).startsWith("call String.")
+                    && isConstant(args.get(1), true);
+            default -> false;
+        };
+    }
+
+    private boolean isConstant(Value value, boolean zeroAllowed) {
+        String instruction = code.get(value.start);
+        return value.end - value.start == 1 && instruction.startsWith("push constant ")
+                && (zeroAllowed || !instruction.equals("push constant 0"));
+    }
+
+    private void rewrite(int bodyLabel, List<Value> hoistable) {
+        int function = bodyLabel;
+        while (!code.get(function).startsWith("function ")) {
+            function--;
+        }
+        String[] header = code.get(function).split(" ");
+        int nVars = Integer.parseInt(header[2]);
+
+        // identical expressions share one local, computed in order of first appearance
+        Map<String, Integer> locals = new LinkedHashMap<>();
+        List<String> prologue = new ArrayList<>();
+        List<Integer> prologueLines = new ArrayList<>();
+        for (Value value : hoistable) {
+            String text = String.join("\n", code.subList(value.start, value.end));
+            if (!locals.containsKey(text)) {
+                locals.put(text, nVars);
+                prologue.addAll(code.subList(value.start, value.end));
+                prologueLines.addAll(lines.subList(value.start, value.end));
+                prologue.add("pop local " + nVars);
+                prologueLines.add(lines.get(value.end - 1));
+                nVars++;
+            }
+        }
+
+        // replace from the back so earlier indices stay valid
+        List<Value> byStart = new ArrayList<>(hoistable);
+        byStart.sort(Comparator.comparingInt(Value::start).reversed());
+        for (Value value : byStart) {
+            String text = String.join("\n", code.subList(value.start, value.end));
+            int line = lines.get(value.start);
+            code.subList(value.start, value.end).clear();
+            lines.subList(value.start, value.end).clear();
+            code.add(value.start, "push local " + locals.get(text));
+            lines.add(value.start, line);
+        }
+        // before the 'goto' that enters the loop
+        code.addAll(bodyLabel - 1, prologue);
+        lines.addAll(bodyLabel - 1, prologueLines);
+        code.set(function, header[0] + " " + header[1] + " " + nVars);
+    }
+}
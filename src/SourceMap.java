@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+/**
+ * Maps every emitted VM instruction to the Jack source line it was compiled from. Instructions are numbered
+ * from 0 in output order, counting every line of the .vm file (labels and function declarations included).
+ * <p>
+ * The map is run-length encoded: an entry is only added when the line changes, and it covers every
+ * instruction up to the next entry. The text form has one entry per line, {@code <first instruction> <line>}:
+ * <pre>
+ * 0 4
+ * 7 5
+ * 12 4
+ * </pre>
+ */
+public class SourceMap {
+    private int[] starts = new int[64];
+    private int[] lines = new int[64];
+    private int size = 0;
+
+    /**
+     * Records that {@code instruction} came from {@code line}. Instructions must be recorded in increasing order.
+     */
+    public void record(int instruction, int line) {
+        if (size > 0 && lines[size - 1] == line) {
+            return;
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            lines = Arrays.copyOf(lines, size * 2);
+        }
+        starts[size] = instruction;
+        lines[size] = line;
+        size++;
+    }
+
+    /**
+     * Returns the source line of the given instruction, or 0 if it is not covered by the map.
+     */
+    public int lineOf(int instruction) {
+        int i = Arrays.binarySearch(starts, 0, size, instruction);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i < 0 ? 0 : lines[i];
+    }
+
+    /**
+     * Makes this map a copy of {@code other}, for passes that renumber the instructions.
+     */
+    public void replaceWith(SourceMap other) {
+        this.starts = Arrays.copyOf(other.starts, other.starts.length);
+        this.lines = Arrays.copyOf(other.lines, other.lines.length);
+        this.size = other.size;
+    }
+
+    public static SourceMap parse(String text) {
+        SourceMap map = new SourceMap();
+        for (String line : text.split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid source map entry: " + line);
+            }
+            map.record(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(starts[i]).append(' ').append(lines[i]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.*;
+
+/**
+ * Computes repeated expressions once, e.g. the second {@code a[i]} in {@code a[i] + a[i]}: the first occurrence is
+ * saved to a temp slot and the others read it back. Works on straight-line VM code between labels, branches and
+ * calls, so nothing can run in between that the VM code does not show.
+ * <p>
+ * An expression qualifies if it is built from constants, locals, arguments, statics, fields and array reads with the
+ * arithmetic and logic commands, and if none of the variables it reads is stored between its occurrences. Any field
+ * or array store, or a change of {@code this}, counts as a store to every field and array element. It has to be long
+ * enough that the copy through the temp slot costs less than computing it again.
+ * <p>
+ * The slots are taken from temp 7 downwards, as the compiler itself only uses temp 0 and every slot is dead again
+ * before the next call, where {@link Inliner} puts its arguments.
+ */
+public class SubexpressionEliminator {
+    private static final int FIRST_SLOT = 7;
+    private static final int LAST_SLOT = 1;
+    // stands for every field and array element
+    private static final String HEAP = "heap";
+
+    private final List<String> code = new ArrayList<>();
+    private final List<Integer> lines = new ArrayList<>();
+
+    private SubexpressionEliminator(String vmCode, SourceMap sourceMap) {
+        for (String line : vmCode.split("\n")) {
+            if (!line.isBlank()) {
+                lines.add(sourceMap == null ? 0 : sourceMap.lineOf(code.size()));
+                code.add(line.trim());
+            }
+        }
+    }
+
+    /**
+     * Returns the optimized VM code of one class. If {@code sourceMap} is not null it is updated in place.
+     */
+    public static String optimize(String vmCode, SourceMap sourceMap) {
+        SubexpressionEliminator eliminator = new SubexpressionEliminator(vmCode, sourceMap);
+        Map<Integer, List<String>> edits = new HashMap<>();
+        int start = 0;
+        for (int i = 0; i <= eliminator.code.size(); i++) {
+            if (i == eliminator.code.size() || isBlockEnd(eliminator.code.get(i))) {
+                eliminator.eliminate(start, i, edits);
+                start = i + 1;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        SourceMap optimizedMap = new SourceMap();
+        int emitted = 0;
+        for (int i = 0; i < eliminator.code.size(); i++) {
+            for (String instruction : edits.getOrDefault(i, List.of(eliminator.code.get(i)))) {
+                sb.append(instruction).append('\n');
+                optimizedMap.record(emitted++, eliminator.lines.get(i));
+            }
+        }
+        if (sourceMap != null) {
+            sourceMap.replaceWith(optimizedMap);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isBlockEnd(String instruction) {
+        String command = instruction.split(" ")[0];
+        return switch (command) {
+            case "label", "goto", "if-goto", "call", "function", "return" -> true;
+            default -> false;
+        };
+    }
+
+    // an expression on the symbolic stack, computed by code[start, end); reads is null unless it is pure
+    private record Value(int start, int end, Set<String> reads) {
+    }
+
+    // the occurrences of one expression, with nothing it reads stored in between
+    private record Group(List<Value> occurrences) {
+        int saving() {
+            Value first = occurrences.get(0);
+            // every later occurrence becomes one push, the first one pays a pop and a push
+            return (occurrences.size() - 1) * (first.end - first.start - 1) - 2;
+        }
+    }
+
+    private void eliminate(int start, int end, Map<Integer, List<String>> edits) {
+        List<Group> groups = new ArrayList<>();
+        Map<String, Group> open = new HashMap<>();
+        Deque<Value> stack = new ArrayDeque<>();
+        boolean[] taken = new boolean[end - start];
+        // b[i] read right after pushing the same address for a store to b[i], by the start of the first address
+        Map<Integer, Value> updates = new HashMap<>();
+        for (int k = start; k < end; k++) {
+            String[] parts = code.get(k).split(" ");
+            Value value = null;
+            switch (parts[0]) {
+                case "push" -> value = new Value(k, k + 1, readsOf(parts[1], parts[2]));
+                case "neg", "not" -> {
+                    Value operand = pop(stack, k);
+                    value = new Value(operand.start, k + 1, operand.reads);
+                }
+                case "add", "sub", "and", "or", "eq", "gt", "lt" -> {
+                    Value y = pop(stack, k);
+                    Value x = pop(stack, k);
+                    Set<String> reads = null;
+                    if (x.reads != null && y.reads != null) {
+                        reads = new HashSet<>(x.reads);
+                        reads.addAll(y.reads);
+                    }
+                    value = new Value(x.start, k + 1, reads);
+                }
+                case "pop" -> {
+                    Value operand = pop(stack, k);
+                    // an array read: address; pop pointer 1; push that 0
+                    if (code.get(k).equals("pop pointer 1") && k + 1 < end && code.get(k + 1).equals("push that 0")) {
+                        Set<String> reads = null;
+                        if (operand.reads != null) {
+                            reads = new HashSet<>(operand.reads);
+                            reads.add(HEAP);
+                        }
+                        value = new Value(operand.start, k + 2, reads);
+                        Value target = stack.peek();
+                        if (operand.reads != null && target != null && target.end == operand.start && sameCode(target, operand)) {
+                            updates.put(target.start, value);
+                        }
+                        k++;
+                    } else if (isArrayStore(k, end) && !stack.isEmpty() && updates.containsKey(stack.peek().start)) {
+                        Value read = updates.get(stack.peek().start);
+                        if (operand.start == read.start && touchesNoArray(read.end, k)) {
+                            updateInPlace(read, k, taken, start, edits);
+                        }
+                    } else {
+                        String stored = switch (parts[1]) {
+                            case "this", "that" -> HEAP;
+                            case "pointer" -> parts[2].equals("0") ? HEAP : null;
+                            case "temp" -> null;
+                            default -> parts[1] + " " + parts[2];
+                        };
+                        if (stored != null) {
+                            // later occurrences are a different value
+                            open.values().removeIf(group -> group.occurrences.get(0).reads.contains(stored));
+                        }
+                    }
+                }
+                default -> {
+                    // not code we understand, leave the block alone
+                    return;
+                }
+            }
+            if (value != null) {
+                stack.push(value);
+                if (value.reads != null && value.end - value.start > 1) {
+                    String text = String.join("\n", code.subList(value.start, value.end));
+                    Group group = open.get(text);
+                    if (group == null) {
+                        group = new Group(new ArrayList<>());
+                        open.put(text, group);
+                        groups.add(group);
+                    }
+                    group.occurrences.add(value);
+                }
+            }
+        }
+
+        // the biggest savings first; an instruction can only be rewritten once
+        groups.sort(Comparator.comparingInt(Group::saving).reversed());
+        int slot = FIRST_SLOT;
+        for (Group group : groups) {
+            if (group.saving() <= 0 || slot < LAST_SLOT) {
+                break;
+            }
+            boolean free = group.occurrences.stream()
+                    .allMatch(value -> allFree(taken, value.start - start, value.end - start));
+            if (!free) {
+                continue;
+            }
+            for (Value value : group.occurrences) {
+                Arrays.fill(taken, value.start - start, value.end - start, true);
+            }
+            Value first = group.occurrences.get(0);
+            edits.put(first.end - 1, List.of(code.get(first.end - 1), "pop temp " + slot, "push temp " + slot));
+            for (Value value : group.occurrences.subList(1, group.occurrences.size())) {
+                for (int k = value.start; k < value.end; k++) {
+                    edits.put(k, List.of());
+                }
+                edits.put(value.start, List.of("push temp " + slot));
+            }
+            slot--;
+        }
+    }
+
+    // values pushed before the block, like the result of the call that starts it, are unknown
+    private static Value pop(Deque<Value> stack, int k) {
+        return stack.isEmpty() ? new Value(k, k, null) : stack.pop();
+    }
+
+    private boolean sameCode(Value x, Value y) {
+        return x.end - x.start == y.end - y.start
+                && code.subList(x.start, x.end).equals(code.subList(y.start, y.end));
+    }
+
+    // pop temp 0; pop pointer 1; push temp 0; pop that 0, the end of let a[i] = ...
+    private boolean isArrayStore(int k, int end) {
+        return k + 3 < end && code.get(k).equals("pop temp 0") && code.get(k + 1).equals("pop pointer 1")
+                && code.get(k + 2).equals("push temp 0") && code.get(k + 3).equals("pop that 0");
+    }
+
+    private boolean touchesNoArray(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (code.get(i).contains("pointer") || code.get(i).contains("that")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites {@code a; a; pop pointer 1; push that 0; e; pop temp 0; pop pointer 1; push temp 0; pop that 0}, i.e.
+     * {@code let b[i] = b[i] + e}, to {@code a; pop pointer 1; push that 0; e; pop that 0}: {@code e} does not touch
+     * {@code pointer 1}, so it still holds the address when the result is stored.
+     */
+    private void updateInPlace(Value read, int store, boolean[] taken, int start, Map<Integer, List<String>> edits) {
+        // the second address, up to pop pointer 1
+        for (int i = read.start; i < read.end - 2; i++) {
+            edits.put(i, List.of());
+        }
+        edits.put(store, List.of("pop that 0"));
+        for (int i = store + 1; i <= store + 3; i++) {
+            edits.put(i, List.of());
+        }
+        Arrays.fill(taken, read.start - start, read.end - start, true);
+        Arrays.fill(taken, store - start, store + 4 - start, true);
+    }
+
+    private static boolean allFree(boolean[] taken, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (taken[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the variables a push reads, or null if it is not a plain read
+    private static Set<String> readsOf(String segment, String index) {
+        return switch (segment) {
+            case "constant" -> Set.of();
+            case "local", "argument", "static" -> Set.of(segment + " " + index);
+            case "this" -> Set.of(HEAP);
+            default -> null;
+        };
+    }
+}
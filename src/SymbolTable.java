@@ -1,35 +1,52 @@
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.Arrays;
+
+/**
+ * The identifiers of one scope. The symbols are stored in parallel arrays that are reused from one subroutine to the
+ * next: {@link #define} bumps a counter and {@link #reset()} releases every symbol at once, so compiling a
+ * subroutine allocates nothing once the arrays are big enough. Names are found through an open-addressing table of
+ * entry numbers, whose slots are only valid for the generation they were written in.
+ */
 public class SymbolTable {
-    private final Map<Kind, Integer> kindCount;
-    private final Map<String, Symbol> symbolTable;
-
-    public SymbolTable() {
-        // Initialize the symbol table
-        this.symbolTable = new HashMap<>();
-        this.kindCount = new HashMap<>();
-        // Initialize the kind count
-        for (Kind kind : Kind.values()) {
-            this.kindCount.put(kind, 0);
-        }
-    }
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int[] kindCount = new int[Kind.values().length];
+
+    // entry i is names[i], types[i], kinds[i], indexes[i]
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] types = new String[INITIAL_CAPACITY];
+    private Kind[] kinds = new Kind[INITIAL_CAPACITY];
+    private int[] indexes = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // open addressing, a slot holds an entry number if its generation is the current one
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int[] slotGenerations = new int[INITIAL_CAPACITY * 2];
+    private int generation = 1;
 
     public void reset() {
-        // Clear the symbol table
-        this.symbolTable.clear();
+        // Release every symbol, the arrays are kept for the next subroutine
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(types, 0, size, null);
+        size = 0;
+        generation++;
         // Reset the kind count
-        for (Kind kind : Kind.values()) {
-            this.kindCount.put(kind, 0);
-        }
+        Arrays.fill(kindCount, 0);
     }
 
     public void define(String name, String type, Kind kind) {
-        Symbol symbol = new Symbol(name, type, kind, kindCount.get(kind));
-        kindCount.put(kind, kindCount.get(kind) + 1);
-
-        // Add a new identifier to the symbol table
-        symbolTable.put(name, symbol);
+        int slot = find(name);
+        if (slotGenerations[slot] == generation) {
+            // a redefinition replaces the symbol, like the map this used to be
+            set(slots[slot], name, type, kind);
+            return;
+        }
+        if (size == names.length) {
+            grow();
+            slot = find(name);
+        }
+        set(size, name, type, kind);
+        slots[slot] = size++;
+        slotGenerations[slot] = generation;
     }
 
     public void define(String name, String type, JackTokenizer.Keyword kindKeyword) {
@@ -39,25 +56,62 @@ public class SymbolTable {
 
     public int varCount(Kind kind) {
         // Return the number of variables of the given kind
-        return kindCount.get(kind);
+        return kindCount[kind.ordinal()];
     }
 
     public Kind kindOf(String name) {
         // Return the kind of the identifier
-        Symbol symbol = symbolTable.get(name);
-        return symbol != null ? symbol.getKind() : Kind.NONE;
+        int entry = entryOf(name);
+        return entry >= 0 ? kinds[entry] : Kind.NONE;
     }
 
     public String typeOf(String name) {
         // Return the type of the identifier
-        Symbol symbol = symbolTable.get(name);
-        return symbol != null ? symbol.getType() : name;
+        int entry = entryOf(name);
+        return entry >= 0 ? types[entry] : name;
     }
 
     public int indexOf(String name) {
         // Return the index of the identifier
-        Symbol symbol = symbolTable.get(name);
-        return symbol != null ? symbol.getIndex() : -1;
+        int entry = entryOf(name);
+        return entry >= 0 ? indexes[entry] : -1;
+    }
+
+    private void set(int entry, String name, String type, Kind kind) {
+        names[entry] = name;
+        types[entry] = type;
+        kinds[entry] = kind;
+        indexes[entry] = kindCount[kind.ordinal()]++;
+    }
+
+    private int entryOf(String name) {
+        int slot = find(name);
+        return slotGenerations[slot] == generation ? slots[slot] : -1;
+    }
+
+    // the slot holding name, or the free slot where it goes
+    private int find(String name) {
+        int mask = slots.length - 1;
+        int slot = name.hashCode() & mask;
+        while (slotGenerations[slot] == generation && !names[slots[slot]].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        types = Arrays.copyOf(types, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        indexes = Arrays.copyOf(indexes, capacity);
+        slots = new int[capacity * 2];
+        slotGenerations = new int[capacity * 2];
+        for (int entry = 0; entry < size; entry++) {
+            int slot = find(names[entry]);
+            slots[slot] = entry;
+            slotGenerations[slot] = generation;
+        }
     }
 
     public enum Kind {
@@ -82,34 +136,4 @@ public class SymbolTable {
             };
         }
     }
-
-    public static class Symbol {
-        private final String name;
-        private final Kind kind;
-        private final String type;
-        private final int index;
-
-        public Symbol(String name, String type, Kind kind, int index) {
-            this.name = name;
-            this.kind = kind;
-            this.type = type;
-            this.index = index;
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public Kind getKind() {
-            return kind;
-        }
-
-        public String getType() {
-            return type;
-        }
-
-        public int getIndex() {
-            return index;
-        }
-    }
 }
@@ -0,0 +1,594 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Runs the VM code written by {@link VMWriter} in-process and counts what it does, so changes to the code
+ * generation can be measured by instructions executed rather than by the size of the .vm files.
+ * <p>
+ * Memory follows the Hack platform: SP, LCL, ARG, THIS and THAT live in RAM[0..4], temp in RAM[5..12], statics
+ * from RAM[16], the stack from RAM[256] and the heap from RAM[2048]. OS functions that are not part of the loaded
+ * code are served by built-in stubs (Math, Memory, Array, String, Output, Sys, Screen and Keyboard); a built-in
+ * call counts as a single instruction.
+ */
+public class VMEmulator {
+    private static final int PUSH = 0, POP = 1, ADD = 2, SUB = 3, NEG = 4, EQ = 5, GT = 6, LT = 7, AND = 8, OR = 9,
+            NOT = 10, LABEL = 11, GOTO = 12, IF_GOTO = 13, FUNCTION = 14, CALL = 15, RETURN = 16;
+    private static final int SP = 0, LCL = 1, ARG = 2, THIS = 3, THAT = 4;
+    private static final int HEAP_BASE = 2048, HEAP_END = 16384;
+    private static final List<String> BUILTINS = List.of(
+            "Math.multiply", "Math.divide", "Math.min", "Math.max", "Math.abs", "Math.sqrt",
+            "Memory.alloc", "Memory.deAlloc", "Memory.peek", "Memory.poke", "Array.new", "Array.dispose",
+            "String.new", "String.dispose", "String.length", "String.charAt", "String.setCharAt", "String.appendChar",
+            "String.eraseLastChar", "String.intValue", "String.setInt", "String.backSpace", "String.doubleQuote",
+            "String.newLine", "Output.printChar", "Output.printString", "Output.printInt", "Output.println",
+            "Output.backSpace", "Output.moveCursor", "Sys.halt", "Sys.error", "Sys.wait", "Keyboard.keyPressed",
+            "Screen.clearScreen", "Screen.setColor", "Screen.drawPixel", "Screen.drawLine", "Screen.drawRectangle",
+            "Screen.drawCircle");
+
+    // decoded program: opcode and up to two operands per instruction
+    private int[] op = new int[1024];
+    private int[] arg1 = new int[1024];
+    private int[] arg2 = new int[1024];
+    private int size = 0;
+    // symbolic operands resolved by link(): labels and call targets
+    private final Map<Integer, String> unresolved = new HashMap<>();
+    private final Map<String, Integer> functions = new HashMap<>();
+    private final List<String> functionNames = new ArrayList<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    // function and label of every if-goto, by pc
+    private final Map<Integer, String[]> branches = new HashMap<>();
+    private final Map<String, Integer> statics = new HashMap<>();
+    private boolean linked = false;
+
+    private final int[] ram = new int[32768];
+    private int heapFree = HEAP_BASE;
+    private final StringBuilder output = new StringBuilder();
+
+    /**
+     * Compiles the .jack files of {@code dir} with {@code options} and loads them, together with the other .vm files
+     * there (e.g. the OS). Returns the diagnostics of the classes that did not compile, which are not loaded.
+     */
+    public List<Diagnostic> loadDirectory(Path dir, CompilerOptions options) throws IOException, InterruptedException {
+        String[] jackFileNames = dir.toFile().list((d, name) -> name.endsWith(".jack"));
+        List<BatchCompiler.Source> sources = new ArrayList<>();
+        for (String jackFileName : jackFileNames == null ? new String[0] : jackFileNames) {
+            sources.add(BatchCompiler.Source.of(dir.resolve(jackFileName)));
+        }
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Set<String> compiled = new HashSet<>();
+        try (BatchCompiler compiler = new BatchCompiler(1, options)) {
+            for (BatchCompiler.Result result : compiler.compile(sources)) {
+                if (!result.isSuccess()) {
+                    diagnostics.addAll(result.diagnostics());
+                    continue;
+                }
+                load(result.name(), result.output());
+                compiled.add(result.name() + ".vm");
+            }
+        }
+        String[] vmFileNames = dir.toFile().list((d, name) -> name.endsWith(".vm"));
+        for (String vmFileName : vmFileNames == null ? new String[0] : vmFileNames) {
+            if (!compiled.contains(vmFileName)) {
+                load(vmFileName.substring(0, vmFileName.length() - 3), Files.readString(dir.resolve(vmFileName)));
+            }
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Loads the VM code of one class. {@code fileName} scopes its static variables, like the VM translator does.
+     */
+    public void load(String fileName, String vmCode) {
+        String function = "";
+        for (String line : vmCode.split("\n")) {
+            if (line.contains("//")) {
+                line = line.substring(0, line.indexOf("//"));
+            }
+            String[] parts = line.trim().split("\\s+");
+            switch (parts[0]) {
+                case "" -> {
+                }
+                case "push", "pop" -> {
+                    VMWriter.Segment segment = VMWriter.Segment.fromName(parts[1]);
+                    int index = Integer.parseInt(parts[2]);
+                    if (segment == VMWriter.Segment.STATIC) {
+                        String key = fileName + "." + index;
+                        statics.putIfAbsent(key, 16 + statics.size());
+                        index = statics.get(key);
+                    }
+                    add(parts[0].equals("push") ? PUSH : POP, segment.ordinal(), index);
+                }
+                case "label" -> labels.put(function + "$" + parts[1], size);
+                case "goto", "if-goto" -> {
+                    if (parts[0].equals("if-goto")) {
+                        branches.put(size, new String[]{function, parts[1]});
+                    }
+                    unresolved.put(size, function + "$" + parts[1]);
+                    add(parts[0].equals("goto") ? GOTO : IF_GOTO, 0, 0);
+                }
+                case "function" -> {
+                    function = parts[1];
+                    functions.put(function, size);
+                    add(FUNCTION, functionId(function), Integer.parseInt(parts[2]));
+                }
+                case "call" -> {
+                    unresolved.put(size, parts[1]);
+                    add(CALL, 0, Integer.parseInt(parts[2]));
+                }
+                case "return" -> add(RETURN, 0, 0);
+                default -> add(switch (VMWriter.Command.fromName(parts[0])) {
+                    case ADD -> ADD;
+                    case SUB -> SUB;
+                    case NEG -> NEG;
+                    case EQ -> EQ;
+                    case GT -> GT;
+                    case LT -> LT;
+                    case AND -> AND;
+                    case OR -> OR;
+                    case NOT -> NOT;
+                }, 0, 0);
+            }
+        }
+        linked = false;
+    }
+
+    private void add(int opcode, int a, int b) {
+        if (size == op.length) {
+            op = Arrays.copyOf(op, size * 2);
+            arg1 = Arrays.copyOf(arg1, size * 2);
+            arg2 = Arrays.copyOf(arg2, size * 2);
+        }
+        op[size] = opcode;
+        arg1[size] = a;
+        arg2[size] = b;
+        size++;
+    }
+
+    private int functionId(String name) {
+        int id = functionNames.indexOf(name);
+        if (id < 0) {
+            functionNames.add(name);
+            id = functionNames.size() - 1;
+        }
+        return id;
+    }
+
+    private void link() {
+        for (Map.Entry<Integer, String> entry : unresolved.entrySet()) {
+            int pc = entry.getKey();
+            String target = entry.getValue();
+            if (op[pc] == CALL) {
+                // arg1 = function id; the callee entry is looked up through 'functions' at run time
+                arg1[pc] = functionId(target);
+            } else {
+                Integer label = labels.get(target);
+                if (label == null) {
+                    throw new IllegalStateException("Undefined label " + target);
+                }
+                arg1[pc] = label;
+            }
+        }
+        linked = true;
+    }
+
+    /**
+     * Runs the program from {@code Sys.init}, or {@code Main.main} when there is no Sys.init, until the entry
+     * function returns, {@code Sys.halt} is called or {@code maxInstructions} have been executed.
+     */
+    public Profile run(long maxInstructions) {
+        if (!linked) {
+            link();
+        }
+        String entry = functions.containsKey("Sys.init") ? "Sys.init" : "Main.main";
+        if (!functions.containsKey(entry)) {
+            throw new IllegalStateException("Neither Sys.init nor Main.main is defined");
+        }
+        int[] entries = new int[functionNames.size()];
+        for (int id = 0; id < entries.length; id++) {
+            // built-ins are encoded as -(index + 1), undefined functions as MIN_VALUE
+            Integer pc = functions.get(functionNames.get(id));
+            int builtin = BUILTINS.indexOf(functionNames.get(id));
+            entries[id] = pc != null ? pc : builtin >= 0 ? -(builtin + 1) : Integer.MIN_VALUE;
+        }
+        long[] calls = new long[functionNames.size()];
+        long[] executed = new long[functionNames.size()];
+        long[] taken = new long[size];
+        long[] notTaken = new long[size];
+
+        Arrays.fill(ram, 0);
+        heapFree = HEAP_BASE;
+        output.setLength(0);
+        ram[SP] = 256;
+        // the entry function returns to pc -1, which ends the run
+        callFunction(-1, 0);
+        int function = functionId(entry);
+        int pc = functions.get(entry);
+        calls[function]++;
+        // caller function ids of the active frames, for per-function instruction counts
+        int[] callers = new int[64];
+        int depth = 0;
+        long count = 0;
+        boolean halted = false;
+
+        while (pc >= 0 && !halted) {
+            if (count == maxInstructions) {
+                return new Profile(count, false, functionNames, calls, executed, executionProfile(calls, taken, notTaken),
+                        output.toString());
+            }
+            count++;
+            executed[function]++;
+            int a = arg1[pc];
+            int b = arg2[pc];
+            switch (op[pc++]) {
+                case PUSH -> push(read(a, b));
+                case POP -> write(a, b, pop());
+                case ADD -> binary((x, y) -> x + y);
+                case SUB -> binary((x, y) -> x - y);
+                case NEG -> push((short) -pop());
+                case EQ -> binary((x, y) -> x == y ? -1 : 0);
+                case GT -> binary((x, y) -> x > y ? -1 : 0);
+                case LT -> binary((x, y) -> x < y ? -1 : 0);
+                case AND -> binary((x, y) -> x & y);
+                case OR -> binary((x, y) -> x | y);
+                case NOT -> push(~pop());
+                case LABEL -> {
+                }
+                case GOTO -> pc = a;
+                case IF_GOTO -> {
+                    if (pop() != 0) {
+                        taken[pc - 1]++;
+                        pc = a;
+                    } else {
+                        notTaken[pc - 1]++;
+                    }
+                }
+                case FUNCTION -> {
+                    for (int i = 0; i < b; i++) {
+                        push(0);
+                    }
+                }
+                case CALL -> {
+                    int target = entries[a];
+                    calls[a]++;
+                    if (target == Integer.MIN_VALUE) {
+                        throw new IllegalStateException("Undefined function " + functionNames.get(a));
+                    } else if (target < 0) {
+                        halted = callBuiltin(BUILTINS.get(-target - 1), b);
+                    } else {
+                        callFunction(pc, b);
+                        if (depth == callers.length) {
+                            callers = Arrays.copyOf(callers, depth * 2);
+                        }
+                        callers[depth++] = function;
+                        function = a;
+                        pc = target;
+                    }
+                }
+                case RETURN -> {
+                    pc = returnFromFunction();
+                    if (depth > 0) {
+                        function = callers[--depth];
+                    }
+                }
+            }
+        }
+        return new Profile(count, true, functionNames, calls, executed, executionProfile(calls, taken, notTaken),
+                output.toString());
+    }
+
+    private ExecutionProfile executionProfile(long[] calls, long[] taken, long[] notTaken) {
+        ExecutionProfile profile = new ExecutionProfile();
+        for (int id = 0; id < calls.length; id++) {
+            if (calls[id] > 0) {
+                profile.addCalls(functionNames.get(id), calls[id]);
+            }
+        }
+        for (Map.Entry<Integer, String[]> branch : branches.entrySet()) {
+            int pc = branch.getKey();
+            if (taken[pc] + notTaken[pc] > 0) {
+                profile.addBranch(branch.getValue()[0], branch.getValue()[1], taken[pc], notTaken[pc]);
+            }
+        }
+        return profile;
+    }
+
+    private void callFunction(int returnAddress, int nArgs) {
+        push(returnAddress);
+        push(ram[LCL]);
+        push(ram[ARG]);
+        push(ram[THIS]);
+        push(ram[THAT]);
+        ram[ARG] = ram[SP] - 5 - nArgs;
+        ram[LCL] = ram[SP];
+    }
+
+    private int returnFromFunction() {
+        int frame = ram[LCL];
+        int returnAddress = ram[frame - 5];
+        ram[ram[ARG]] = pop();
+        ram[SP] = ram[ARG] + 1;
+        ram[THAT] = ram[frame - 1];
+        ram[THIS] = ram[frame - 2];
+        ram[ARG] = ram[frame - 3];
+        ram[LCL] = ram[frame - 4];
+        return returnAddress;
+    }
+
+    private int address(int segment, int index) {
+        return switch (VMWriter.Segment.values()[segment]) {
+            case LOCAL -> ram[LCL] + index;
+            case ARG -> ram[ARG] + index;
+            case THIS -> ram[THIS] + index;
+            case THAT -> ram[THAT] + index;
+            case POINTER -> THIS + index;
+            case TEMP -> 5 + index;
+            // resolved to an absolute address by load()
+            case STATIC -> index;
+            case CONST -> throw new IllegalStateException("Constant has no address");
+        };
+    }
+
+    private int read(int segment, int index) {
+        return segment == VMWriter.Segment.CONST.ordinal() ? index : ram[address(segment, index)];
+    }
+
+    private void write(int segment, int index, int value) {
+        ram[address(segment, index)] = value;
+    }
+
+    private void push(int value) {
+        ram[ram[SP]++] = value;
+    }
+
+    private int pop() {
+        return ram[--ram[SP]];
+    }
+
+    private interface BinaryOp {
+        int apply(int x, int y);
+    }
+
+    private void binary(BinaryOp operation) {
+        int y = pop();
+        int x = pop();
+        // every value is a 16-bit two's complement word
+        push((short) operation.apply(x, y));
+    }
+
+    /**
+     * Pops the arguments of a built-in OS function and pushes its result. Returns true if the program halted.
+     */
+    private boolean callBuiltin(String name, int nArgs) {
+        int[] args = new int[nArgs];
+        for (int i = nArgs - 1; i >= 0; i--) {
+            args[i] = pop();
+        }
+        int result = 0;
+        switch (name) {
+            case "Math.multiply" -> result = (short) (args[0] * args[1]);
+            case "Math.divide" -> {
+                if (args[1] == 0) {
+                    throw new IllegalStateException("Sys.error 3: division by zero");
+                }
+                result = (short) (args[0] / args[1]);
+            }
+            case "Math.min" -> result = Math.min(args[0], args[1]);
+            case "Math.max" -> result = Math.max(args[0], args[1]);
+            case "Math.abs" -> result = (short) Math.abs(args[0]);
+            case "Math.sqrt" -> result = (int) Math.sqrt(args[0]);
+            case "Memory.alloc", "Array.new" -> result = alloc(args[0]);
+            case "Memory.peek" -> result = ram[args[0]];
+            case "Memory.poke" -> ram[args[0]] = args[1];
+            case "Memory.deAlloc", "Array.dispose", "String.dispose", "Sys.wait", "Output.moveCursor",
+                    "Screen.clearScreen", "Screen.setColor", "Screen.drawPixel", "Screen.drawLine",
+                    "Screen.drawRectangle", "Screen.drawCircle" -> {
+            }
+            // a string is [length, capacity, chars...]
+            case "String.new" -> {
+                result = alloc(args[0] + 2);
+                ram[result + 1] = args[0];
+            }
+            case "String.length" -> result = ram[args[0]];
+            case "String.charAt" -> result = ram[args[0] + 2 + args[1]];
+            case "String.setCharAt" -> ram[args[0] + 2 + args[1]] = args[2];
+            case "String.appendChar" -> {
+                if (ram[args[0]] == ram[args[0] + 1]) {
+                    throw new IllegalStateException("Sys.error 17: string is full");
+                }
+                ram[args[0] + 2 + ram[args[0]]++] = args[1];
+                result = args[0];
+            }
+            case "String.eraseLastChar" -> ram[args[0]] = Math.max(0, ram[args[0]] - 1);
+            case "String.intValue" -> result = (short) parseInt(stringOf(args[0]));
+            case "String.setInt" -> {
+                String digits = Integer.toString(args[1]);
+                ram[args[0]] = 0;
+                for (char c : digits.toCharArray()) {
+                    ram[args[0] + 2 + ram[args[0]]++] = c;
+                }
+            }
+            case "String.backSpace", "Output.backSpace" -> result = 129;
+            case "String.doubleQuote" -> result = 34;
+            case "String.newLine" -> result = 128;
+            case "Output.printChar" -> output.append((char) args[0]);
+            case "Output.printString" -> output.append(stringOf(args[0]));
+            case "Output.printInt" -> output.append(args[0]);
+            case "Output.println" -> output.append('\n');
+            case "Sys.halt" -> {
+                return true;
+            }
+            case "Sys.error" -> throw new IllegalStateException("Sys.error " + args[0]);
+            case "Keyboard.keyPressed" -> result = 0;
+        }
+        push(result);
+        return false;
+    }
+
+    private int alloc(int words) {
+        if (words <= 0 || heapFree + words > HEAP_END) {
+            throw new IllegalStateException("Sys.error 6: cannot allocate " + words + " words");
+        }
+        int block = heapFree;
+        heapFree += words;
+        return block;
+    }
+
+    private String stringOf(int address) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ram[address]; i++) {
+            sb.append((char) ram[address + 2 + i]);
+        }
+        return sb.toString();
+    }
+
+    private static int parseInt(String s) {
+        int i = s.startsWith("-") ? 1 : 0;
+        int value = 0;
+        while (i < s.length() && Character.isDigit(s.charAt(i))) {
+            value = value * 10 + s.charAt(i++) - '0';
+        }
+        return s.startsWith("-") ? -value : value;
+    }
+
+    /**
+     * What a run did: instructions executed in total and, per function, calls and instructions executed
+     * in its own body. {@code completed} is false if the run was stopped by the instruction limit.
+     */
+    public static final class Profile {
+        private final long instructions;
+        private final boolean completed;
+        private final Map<String, Long> calls = new TreeMap<>();
+        private final Map<String, Long> instructionsByFunction = new TreeMap<>();
+        private final ExecutionProfile executionProfile;
+        private final String output;
+
+        private Profile(long instructions, boolean completed, List<String> functionNames, long[] calls,
+                        long[] instructionsByFunction, ExecutionProfile executionProfile, String output) {
+            this.instructions = instructions;
+            this.executionProfile = executionProfile;
+            this.completed = completed;
+            for (int id = 0; id < functionNames.size(); id++) {
+                if (calls[id] > 0) {
+                    this.calls.put(functionNames.get(id), calls[id]);
+                }
+                if (instructionsByFunction[id] > 0) {
+                    this.instructionsByFunction.put(functionNames.get(id), instructionsByFunction[id]);
+                }
+            }
+            this.output = output;
+        }
+
+        public long getInstructions() {
+            return instructions;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public Map<String, Long> getCalls() {
+            return calls;
+        }
+
+        public Map<String, Long> getInstructionsByFunction() {
+            return instructionsByFunction;
+        }
+
+        /**
+         * The call and branch counts, to compile the program again with {@code --profile}.
+         */
+        public ExecutionProfile getExecutionProfile() {
+            return executionProfile;
+        }
+
+        /**
+         * Everything the program printed through the Output stubs.
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("instructions ").append(instructions).append(completed ? "" : " (stopped)").append('\n');
+            sb.append(String.format("%12s %12s  %s%n", "calls", "instructions", "function"));
+            Set<String> names = new TreeSet<>(calls.keySet());
+            names.addAll(instructionsByFunction.keySet());
+            for (String name : names) {
+                sb.append(String.format("%12d %12d  %s%n", calls.getOrDefault(name, 0L),
+                        instructionsByFunction.getOrDefault(name, 0L), name));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static void usage() {
+        System.out.printf("Usage: java %s [--max-instructions <n>] [--write-profile <file>] %s <directory>", VMEmulator.class.getName(),
+                CompilerOptions.USAGE);
+        System.exit(1);
+    }
+
+    private static boolean parseOption(CompilerOptions options, String arg) {
+        try {
+            return options.parse(arg);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Compiles the .jack files of a directory, loads them together with any other .vm files there and runs the
+     * program. With {@code --max-instructions} the exit status is 1 when the program needs more instructions,
+     * which makes it usable as a code generation regression check. {@code --write-profile} saves the
+     * {@link ExecutionProfile} of the run. Compiler options are passed on to the compiler.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long maxInstructions = Long.MAX_VALUE;
+        CompilerOptions options = new CompilerOptions();
+        String input = null;
+        String profileFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--max-instructions") && i + 1 < args.length) {
+                maxInstructions = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--write-profile") && i + 1 < args.length) {
+                profileFile = args[++i];
+            } else if (parseOption(options, args[i])) {
+                // the emulator runs .vm code
+                options.setAsm(false);
+            } else if (input == null && !args[i].startsWith("--")) {
+                input = args[i];
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (input == null || !new File(input).isDirectory()) {
+            usage();
+            return;
+        }
+
+        VMEmulator emulator = new VMEmulator();
+        List<Diagnostic> diagnostics = emulator.loadDirectory(Path.of(input), options);
+        if (!diagnostics.isEmpty()) {
+            diagnostics.forEach(System.err::println);
+            System.exit(1);
+        }
+
+        Profile profile = emulator.run(maxInstructions);
+        System.out.print(profile.getOutput());
+        System.out.println();
+        System.out.print(profile);
+        if (profileFile != null) {
+            Files.writeString(Path.of(profileFile), profile.getExecutionProfile().toString());
+        }
+        if (!profile.isCompleted()) {
+            System.out.println("instruction budget of " + maxInstructions + " exceeded");
+            System.exit(1);
+        }
+    }
+}
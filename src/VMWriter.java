@@ -1,58 +1,119 @@
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.IntSupplier;
 
 public class VMWriter implements AutoCloseable{
     private final OutputStreamWriter out;
-    private static int LABEL_COUNT = 0;
+    // labels only have to be unique within a function, so every writer numbers its own
+    private int labelCount = 0;
+    private int instructionCount = 0;
+    private SourceMap sourceMap;
+    private IntSupplier sourceLine;
+    private final Deque<List<Captured>> captures = new ArrayDeque<>();
 
     public VMWriter(OutputStream out) {
         this.out = new OutputStreamWriter(out);
     }
 
-    public void writePush(Segment segment, int index) throws IOException {
-        out.write("push " + segment.toString() + " " + index + "\n");
+    /**
+     * Records the source line of every instruction written from now on, as reported by {@code sourceLine}.
+     */
+    public void setSourceMap(SourceMap sourceMap, IntSupplier sourceLine) {
+        this.sourceMap = sourceMap;
+        this.sourceLine = sourceLine;
+    }
+
+    protected void write(String instruction) throws IOException {
+        emit(instruction, sourceMap != null ? sourceLine.getAsInt() : 0);
+    }
+
+    private void emit(String instruction, int line) throws IOException {
+        if (!captures.isEmpty()) {
+            captures.peek().add(new Captured(instruction, line));
+            return;
+        }
+        if (sourceMap != null) {
+            sourceMap.record(instructionCount, line);
+        }
+        instructionCount++;
+        out.write(instruction);
+    }
+
+    /**
+     * Writes out everything buffered so far. The output stream only sees complete classes or programs, so this is
+     * called once at the end of each, not per instruction.
+     */
+    public void flush() throws IOException {
         out.flush();
     }
 
+    public int getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Holds back everything written from now on until {@link #endCapture()}, so code can be emitted in a different
+     * order than it is compiled. Captures nest.
+     */
+    public void beginCapture() {
+        captures.push(new ArrayList<>());
+    }
+
+    public List<Captured> endCapture() {
+        return captures.pop();
+    }
+
+    /**
+     * Writes captured code, keeping the source lines it was compiled from.
+     */
+    public void replay(List<Captured> captured) throws IOException {
+        for (Captured instruction : captured) {
+            emit(instruction.instruction(), instruction.line());
+        }
+    }
+
+    public void writePush(Segment segment, int index) throws IOException {
+        write("push " + segment.toString() + " " + index + "\n");
+    }
+
     public void writePop(Segment segment, int index) throws IOException {
-        out.write("pop " + segment.toString() + " " + index + "\n");
-        out.flush();
+        write("pop " + segment.toString() + " " + index + "\n");
     }
 
     public void writeArithmetic(Command command) throws IOException {
-        out.write(command.toString() + "\n");
-        out.flush();
+        write(command.toString() + "\n");
     }
 
     public void writeLabel(String label) throws IOException {
-        out.write("label " + label + "\n");
-        out.flush();
+        write("label " + label + "\n");
     }
 
     public void writeGoto(String label) throws IOException {
-        out.write("goto " + label + "\n");
-        out.flush();
+        write("goto " + label + "\n");
     }
 
     public void writeIf(String label) throws IOException {
-        out.write("if-goto " + label + "\n");
-        out.flush();
+        write("if-goto " + label + "\n");
     }
 
     public void writeCall(String name, int nArgs) throws IOException {
-        out.write("call " + name + " " + nArgs + "\n");
-        out.flush();
+        write("call " + name + " " + nArgs + "\n");
     }
 
     public void writeFunction(String name, int nVars) throws IOException {
-        out.write("function " + name + " " + nVars + "\n");
-        out.flush();
+        write("function " + name + " " + nVars + "\n");
     }
 
     public void writeReturn() throws IOException {
-        out.write("return\n");
-        out.flush();
+        write("return\n");
+    }
+
+    public record Captured(String instruction, int line) {
     }
 
     public enum Command {
@@ -70,6 +131,15 @@ public class VMWriter implements AutoCloseable{
                 case NOT -> "not";
             };
         }
+
+        public static Command fromName(String name) {
+            for (Command command : values()) {
+                if (command.toString().equals(name)) {
+                    return command;
+                }
+            }
+            throw new IllegalArgumentException("Invalid command: " + name);
+        }
     }
 
     public enum Segment {
@@ -96,10 +166,19 @@ public class VMWriter implements AutoCloseable{
                 default -> throw new IllegalArgumentException("Invalid kind: " + kind);
             };
         }
+
+        public static Segment fromName(String name) {
+            for (Segment segment : values()) {
+                if (segment.toString().equals(name)) {
+                    return segment;
+                }
+            }
+            throw new IllegalArgumentException("Invalid segment: " + name);
+        }
     }
 
-    public static String newLabel() {
-        return "LABEL" + LABEL_COUNT++;
+    public String newLabel() {
+        return "LABEL" + labelCount++;
     }
 
     @Override
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compiles every source on its own virtual thread, which reads it, compiles it and writes it. Blocking reads and
+ * writes only park their virtual thread, so any number of files can wait on a slow filesystem at once, while a
+ * semaphore keeps the compiling itself to one file per core.
+ * <p>
+ * Every file in flight holds its source in memory; for very large directories on fast disks
+ * {@link CompilationPipeline} bounds that instead.
+ */
+public class VirtualThreadCompiler {
+    private final Semaphore cpu;
+    private final CompilerOptions options;
+
+    public VirtualThreadCompiler(int parallelism, CompilerOptions options) {
+        this.cpu = new Semaphore(parallelism);
+        this.options = options;
+    }
+
+    /**
+     * Same contract as {@link CompilationPipeline#run}, except that {@code sink} is called from many threads at once.
+     */
+    public List<BatchCompiler.Result> run(List<BatchCompiler.Source> sources, CompilationPipeline.Sink sink)
+            throws InterruptedException {
+        List<Future<BatchCompiler.Result>> futures = new ArrayList<>(sources.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (BatchCompiler.Source source : sources) {
+                futures.add(executor.submit(() -> compile(source, sink)));
+            }
+        }
+        // closing the executor waited for every file
+        List<BatchCompiler.Result> results = new ArrayList<>(futures.size());
+        for (Future<BatchCompiler.Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // compile turns every error into a failed result, so this is a bug
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private BatchCompiler.Result compile(BatchCompiler.Source source, CompilationPipeline.Sink sink)
+            throws InterruptedException {
+        byte[] bytes;
+        try (InputStream inputStream = source.open()) {
+            bytes = inputStream.readAllBytes();
+        } catch (IOException e) {
+            Diagnostic diagnostic = new Diagnostic(source.name(), 0, 0, "I/O error: " + e.getMessage());
+            return new BatchCompiler.Result(source.name(), "", null, List.of(diagnostic));
+        } catch (RuntimeException | Error e) {
+            return CompilationPipeline.failed(source.name(), e);
+        }
+
+        BatchCompiler.Result result;
+        cpu.acquire();
+        try {
+            result = BatchCompiler.compile(BatchCompiler.Source.of(source.name(), bytes), options);
+        } catch (Error e) {
+            // e.g. a StackOverflowError, the other files are still compiled
+            result = CompilationPipeline.failed(source.name(), e);
+        } finally {
+            cpu.release();
+        }
+        return CompilationPipeline.write(sink, result);
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Runs {@link JackCompiler} on archives whose classes sit in subdirectories. Two entries that define the same class
+ * must be reported and nothing written, since their output would overwrite each other.
+ */
+public class ArchiveInputTest {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("jack-archive");
+        try {
+            Map<String, String> distinct = new TreeMap<>();
+            distinct.put("a/Main.jack", "class Main { function void main() { do Other.f(); return; } }");
+            distinct.put("b/Other.jack", "class Other { function void f() { return; } }");
+            Path ok = archive(dir, "Distinct", distinct);
+            Expect.that(compile(ok) == 0, "classes in different directories should compile");
+            Expect.that(Files.exists(dir.resolve("output/Main.vm")) && Files.exists(dir.resolve("output/Other.vm")),
+                    "Main.vm and Other.vm should be written");
+            System.out.println("distinct classes: ok");
+
+            Map<String, String> duplicate = new TreeMap<>();
+            duplicate.put("a/Main.jack", "class Main { function void main() { return; } }");
+            duplicate.put("b/Main.jack", "class Main { function int main() { return 1; } }");
+            Path clash = archive(dir, "Clash", duplicate);
+            Files.delete(dir.resolve("output/Main.vm"));
+            Expect.that(compile(clash) != 0, "two classes named Main should fail");
+            Expect.that(!Files.exists(dir.resolve("output/Main.vm")), "nothing should be written for Main");
+            System.out.println("duplicate classes: ok");
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static Path archive(Path dir, String name, Map<String, String> entries) throws IOException {
+        Path file = dir.resolve(name + ".zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue().getBytes());
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    // main exits the JVM on failure, so it runs in a process of its own
+    private static int compile(Path archive) throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                JackCompiler.class.getName(), archive.toString()).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        System.out.print(new String(process.getInputStream().readAllBytes()).indent(4));
+        return process.waitFor();
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Builds programs/AsmBackend both ways, straight to Hack assembly with --asm and through .vm text translated by
+ * {@link HackAsmWriter#writeVM}, runs both on a {@link HackCpu} and compares the results the program stores at
+ * RAM[8000..8005].
+ */
+public class AsmBackendTest {
+    private static final int RESULTS = 8000;
+    private static final short[] EXPECTED = {144, 2381, 995, 142, -1, 20};
+    // the program spins in 'while (true) { }' once it is done
+    private static final long MAX_STEPS = 3_000_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<BatchCompiler.Source> sources = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Path.of(args[0], "programs", "AsmBackend"))) {
+            files.filter(f -> f.toString().endsWith(".jack")).sorted().forEach(f -> sources.add(BatchCompiler.Source.of(f)));
+        }
+
+        List<String> flags = List.of("--inline", "--optimize-loops", "--propagate-constants", "--eliminate-subexpressions");
+        check(sources, new CompilerOptions(), "default");
+        CompilerOptions optimized = new CompilerOptions();
+        flags.forEach(optimized::parse);
+        check(sources, optimized, String.join(" ", flags));
+    }
+
+    private static void check(List<BatchCompiler.Source> sources, CompilerOptions options, String name)
+            throws IOException, InterruptedException {
+        CompilerOptions asm = new CompilerOptions(options);
+        asm.setAsm(true);
+        short[] direct = run(link(compile(sources, asm), false));
+        short[] viaVm = run(link(compile(sources, options), true));
+        Expect.that(Arrays.equals(direct, viaVm), name + ": --asm gave " + Arrays.toString(direct)
+                + ", the .vm route " + Arrays.toString(viaVm));
+        Expect.that(Arrays.equals(direct, EXPECTED), name + ": expected " + Arrays.toString(EXPECTED) + " but got "
+                + Arrays.toString(direct));
+        System.out.println(name + ": " + Arrays.toString(direct));
+    }
+
+    private static List<BatchCompiler.Result> compile(List<BatchCompiler.Source> sources, CompilerOptions options)
+            throws InterruptedException {
+        try (BatchCompiler compiler = new BatchCompiler(1, options)) {
+            List<BatchCompiler.Result> results = compiler.compile(sources);
+            for (BatchCompiler.Result result : results) {
+                Expect.that(result.isSuccess(), result.diagnostics().toString());
+            }
+            return results;
+        }
+    }
+
+    // the bootstrap and every class, as JackCompiler links an --asm program
+    private static String link(List<BatchCompiler.Result> results, boolean translate) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HackAsmWriter(out, "AsmBackend").writeBootstrap();
+        for (BatchCompiler.Result result : results) {
+            if (translate) {
+                new HackAsmWriter(out, result.name()).writeVM(new StringReader(result.output()));
+            } else {
+                out.write(result.output().getBytes());
+            }
+        }
+        return out.toString();
+    }
+
+    private static short[] run(String asm) {
+        HackCpu cpu = new HackCpu(asm);
+        cpu.run(MAX_STEPS);
+        short[] results = new short[EXPECTED.length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = cpu.ram(RESULTS + i);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file that kills its stage with an Error, while being read, compiled or written, fails on its own: every other
+ * file is still compiled and written, and the results come back complete and in order. Checked for
+ * {@link CompilationPipeline} and {@link VirtualThreadCompiler}, which share that contract.
+ */
+public class CompilationPipelineTest {
+    public static void main(String[] args) throws InterruptedException {
+        List<BatchCompiler.Source> sources = new ArrayList<>();
+        sources.add(source("A", "class A { function int f() { return 1; } }"));
+        sources.add(new BatchCompiler.Source() {
+            @Override
+            public String name() {
+                return "Unreadable";
+            }
+
+            @Override
+            public InputStream open() {
+                throw new OutOfMemoryError("reading");
+            }
+        });
+        // statements nest on the Java stack, so this overflows it
+        int depth = 100_000;
+        sources.add(source("Deep", "class Deep { function void f() { " + "if (true) { ".repeat(depth)
+                + "}".repeat(depth) + " return; } }"));
+        sources.add(source("Unwritable", "class Unwritable { function int f() { return 2; } }"));
+        sources.add(source("B", "class B { function int f() { return 3; } }"));
+
+        run("pipeline", sources, sink -> new CompilationPipeline(2, new CompilerOptions()).run(sources, sink));
+        run("virtual threads", sources, sink -> new VirtualThreadCompiler(2, new CompilerOptions()).run(sources, sink));
+    }
+
+    private interface Runner {
+        List<BatchCompiler.Result> run(CompilationPipeline.Sink sink) throws InterruptedException;
+    }
+
+    private static void run(String mode, List<BatchCompiler.Source> sources, Runner runner) throws InterruptedException {
+        List<String> written = new ArrayList<>();
+        CompilationPipeline.Sink sink = result -> {
+            if (result.name().equals("Unwritable")) {
+                throw new AssertionError("writing");
+            }
+            synchronized (written) {
+                written.add(result.name());
+            }
+        };
+        List<BatchCompiler.Result> results = runner.run(sink);
+
+        List<String> names = results.stream().map(BatchCompiler.Result::name).toList();
+        Expect.that(names.equals(List.of("A", "Unreadable", "Deep", "Unwritable", "B")), "results " + names);
+        Expect.that(written.containsAll(List.of("A", "B")) && written.size() == 2, "written " + written);
+        Expect.that(results.get(0).isSuccess() && results.get(4).isSuccess(), "A and B compiled");
+        Expect.that(results.get(1).diagnostics().toString().contains("OutOfMemoryError"),
+                "Unreadable " + results.get(1));
+        Expect.that(results.get(2).diagnostics().toString().contains("StackOverflowError"), "Deep " + results.get(2));
+        Expect.that(results.get(3).diagnostics().toString().contains("AssertionError"), "Unwritable " + results.get(3));
+        System.out.println(mode + ": ok");
+    }
+
+    private static BatchCompiler.Source source(String name, String code) {
+        return BatchCompiler.Source.of(name, code.getBytes(StandardCharsets.UTF_8));
+    }
+}
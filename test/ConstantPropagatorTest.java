@@ -0,0 +1,81 @@
+/**
+ * Runs {@link ConstantPropagator} on small pieces of VM code and compares the result with the code expected.
+ */
+public class ConstantPropagatorTest {
+    public static void main(String[] args) {
+        // ~32767 is -32768, which no 'push constant' can write
+        same("~32767", """
+                function Main.f 0
+                push constant 32767
+                not
+                return
+                """, """
+                function Main.f 0
+                push constant 32767
+                not
+                return
+                """);
+        same("-(-32767)", """
+                function Main.f 0
+                push constant 32767
+                neg
+                neg
+                return
+                """, """
+                function Main.f 0
+                push constant 32767
+                return
+                """);
+        same("~(-32767)", """
+                function Main.f 0
+                push constant 32767
+                neg
+                not
+                return
+                """, """
+                function Main.f 0
+                push constant 32766
+                return
+                """);
+        System.out.println("unary folding: ok");
+
+        // the read after the store in init is replaced, the one in main is not, as main may run before init
+        same("static set by init", """
+                function Main.init 0
+                push constant 10
+                pop static 0
+                push static 0
+                push constant 2
+                call Math.multiply 2
+                pop static 1
+                push constant 0
+                return
+                function Main.main 0
+                push static 0
+                call Output.printInt 1
+                pop temp 0
+                push constant 0
+                return
+                """, """
+                function Main.init 0
+                push constant 10
+                pop static 0
+                push constant 20
+                pop static 1
+                push constant 0
+                return
+                function Main.main 0
+                push static 0
+                call Output.printInt 1
+                pop temp 0
+                push constant 0
+                return
+                """);
+        System.out.println("static propagation: ok");
+    }
+
+    private static void same(String name, String vmCode, String expected) {
+        String optimized = ConstantPropagator.optimize(vmCode, null);
+        Expect.that(optimized.equals(expected), name + ": expected\n" + expected + "but got\n" + optimized);
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes an {@link ExecutionProfile} out and reads it back, then checks that a profile recorded from a build that
+ * already used one leads to the same layout as a profile of a plain build, so the layout does not flip from build
+ * to build.
+ */
+public class ExecutionProfileTest {
+    private static final long MAX_INSTRUCTIONS = 1_000_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        roundTrip();
+        Path dir = Path.of(args[0], "programs", "Profiled");
+        stableLayout(dir, new CompilerOptions(), "default");
+        CompilerOptions loops = new CompilerOptions();
+        loops.parse("--optimize-loops");
+        stableLayout(dir, loops, "--optimize-loops");
+    }
+
+    private static void roundTrip() {
+        ExecutionProfile profile = new ExecutionProfile();
+        profile.addCalls("Main.main", 1);
+        profile.addCalls("Point.new", 300);
+        profile.addBranch("Main.main", "WHILE1", 0, 200);
+        profile.addBranch("Point.distance", "IF_TRUE4", 7, 0);
+        String text = profile.toString();
+
+        ExecutionProfile parsed = ExecutionProfile.parse(text);
+        Expect.that(parsed.toString().equals(text),
+                "the profile changed when read back:\n" + parsed + "instead of\n" + text);
+        Expect.that(parsed.getCalls("Point.new") == 300, "calls of Point.new: " + parsed.getCalls("Point.new"));
+        Expect.that(parsed.getBranch("Point.distance", "IF_TRUE4").equals(new ExecutionProfile.Branch(7, 0)),
+                "branch IF_TRUE4: " + parsed.getBranch("Point.distance", "IF_TRUE4"));
+        Expect.that(parsed.getBranch("Main.main", "IF_TRUE4") == null, "a branch of another function was found");
+
+        // profiles of several runs are concatenated
+        ExecutionProfile twice = ExecutionProfile.parse(text + text);
+        Expect.that(twice.getCalls("Main.main") == 2,
+                "concatenated calls of Main.main: " + twice.getCalls("Main.main"));
+        Expect.that(twice.getBranch("Main.main", "WHILE1").equals(new ExecutionProfile.Branch(0, 400)),
+                "concatenated branch WHILE1: " + twice.getBranch("Main.main", "WHILE1"));
+
+        try {
+            ExecutionProfile.parse("call Main.main 1\nbranch Main.main IF0 1\n");
+            throw new AssertionError("a branch without its not taken count was accepted");
+        } catch (IllegalArgumentException e) {
+            Expect.that(e.getMessage().contains("line 2"), "the error does not give the line: " + e.getMessage());
+        }
+        System.out.println("round trip: ok");
+    }
+
+    // the profile of a plain build, of the build it gives and of the build that one gives must all agree
+    private static void stableLayout(Path dir, CompilerOptions options, String name)
+            throws IOException, InterruptedException {
+        CompilerOptions plain = new CompilerOptions();
+        CompilerOptions profiled = new CompilerOptions(options);
+        profiled.setProfile(profile(dir, plain));
+        String first = compile(dir, profiled);
+        Expect.that(first.contains("if-goto IF_TRUE"),
+                name + ": the mostly true if was not laid out as taken:\n" + first);
+
+        profiled.setProfile(profile(dir, profiled));
+        String second = compile(dir, profiled);
+        Expect.that(second.equals(first),
+                name + ": the layout changed with a profile of the optimized build:\n" + second + "instead of\n" + first);
+        profiled.setProfile(profile(dir, profiled));
+        Expect.that(compile(dir, profiled).equals(first), name + ": the layout changed on the third build");
+        System.out.println(name + ": ok");
+    }
+
+    private static String compile(Path dir, CompilerOptions options) {
+        BatchCompiler.Result result = BatchCompiler.compile(BatchCompiler.Source.of(dir.resolve("Main.jack")), options);
+        Expect.that(result.isSuccess(), String.valueOf(result.diagnostics()));
+        return result.output();
+    }
+
+    private static ExecutionProfile profile(Path dir, CompilerOptions options) throws IOException, InterruptedException {
+        VMEmulator emulator = new VMEmulator();
+        List<Diagnostic> diagnostics = emulator.loadDirectory(dir, options);
+        Expect.that(diagnostics.isEmpty(), String.valueOf(diagnostics));
+        VMEmulator.Profile profile = emulator.run(MAX_INSTRUCTIONS);
+        String expected = Files.readString(dir.resolve("expected-output.txt"));
+        Expect.that(profile.isCompleted() && profile.getOutput().equals(expected),
+                "printed '" + profile.getOutput() + "' instead of '" + expected + "'");
+        // written out and read back, as VMEmulator --write-profile and --profile= do
+        return ExecutionProfile.parse(profile.getExecutionProfile().toString());
+    }
+}
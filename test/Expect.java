@@ -0,0 +1,14 @@
+/**
+ * The assertion the tests share. Like the {@code assert} statement, but always on, since the tests run without
+ * {@code -ea}.
+ */
+final class Expect {
+    private Expect() {
+    }
+
+    static void that(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compiles expressions nested up to 100k levels deep, on a thread with a small stack, and checks the VM code against
+ * the left-to-right evaluation it must match. Prints the compile time per depth.
+ */
+public class ExpressionNestingBenchmark {
+    private static final int[] DEPTHS = {1_000, 10_000, 100_000};
+    // far below what one Java frame per nesting level would need at 100k
+    private static final long STACK_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws InterruptedException {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                for (int depth : DEPTHS) {
+                    run(depth);
+                }
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "nesting", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            failure[0].printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void run(int depth) throws IOException {
+        // let x = (((1 + 1) + 1) ... + 1); and let x = -(-(... -(x) ...));
+        StringBuilder parentheses = new StringBuilder();
+        StringBuilder unary = new StringBuilder();
+        parentheses.append("(".repeat(depth)).append('1');
+        unary.append("-(".repeat(depth)).append('x');
+        for (int i = 0; i < depth; i++) {
+            parentheses.append(" + 1)");
+            unary.append(')');
+        }
+        String source = "class Nesting {\n    function void main() {\n        var int x;\n"
+                + "        let x = " + parentheses + ";\n"
+                + "        let x = " + unary + ";\n"
+                + "        return;\n    }\n}\n";
+
+        StringBuilder expected = new StringBuilder("function Nesting.main 1\npush constant 1\n");
+        expected.append("push constant 1\nadd\n".repeat(depth));
+        expected.append("pop local 0\npush local 0\n");
+        expected.append("neg\n".repeat(depth));
+        expected.append("pop local 0\npush constant 0\nreturn\n");
+        // the unreachable void result compileSubroutineBody writes after the statements
+        expected.append("push constant 0\n");
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CompilationEngine engine = new CompilationEngine("Nesting.jack",
+                new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), output);
+        engine.compileClass();
+        long elapsed = System.nanoTime() - start;
+
+        if (!engine.getDiagnostics().isEmpty()) {
+            throw new AssertionError("depth " + depth + ": " + engine.getDiagnostics());
+        }
+        if (!output.toString(StandardCharsets.UTF_8).equals(expected.toString())) {
+            throw new AssertionError("depth " + depth + ": unexpected VM code");
+        }
+        System.out.printf("depth %,d: %d ms%n", depth, elapsed / 1_000_000);
+    }
+}
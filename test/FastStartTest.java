@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Runs the {@link FastStart} training on a corpus with a class that does not compile. It must exit with a failure
+ * status, and only after deleting the copy of the corpus it compiled.
+ */
+public class FastStartTest {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("jack-fast-start-test");
+        try {
+            Path corpus = Files.createDirectory(dir.resolve("corpus"));
+            Path tmp = Files.createDirectory(dir.resolve("tmp"));
+            Files.writeString(corpus.resolve("Main.jack"), "class Main { function void main() { return; } }");
+            Files.writeString(corpus.resolve("Broken.jack"), "class Broken { function void f() { do Main.main() } }");
+
+            String java = ProcessHandle.current().info().command().orElse("java");
+            Process process = new ProcessBuilder(java, "-Djava.io.tmpdir=" + tmp, "-cp",
+                    System.getProperty("java.class.path"), FastStart.class.getName(), corpus.toString())
+                    .redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            String output = new String(process.getInputStream().readAllBytes());
+            int status = process.waitFor();
+
+            Expect.that(status != 0, "the training succeeded with a broken class:\n" + output);
+            try (Stream<Path> left = Files.list(tmp)) {
+                Expect.that(left.findAny().isEmpty(), "the copy of the corpus was not deleted");
+            }
+            Expect.that(!Files.exists(corpus.resolve("output")), "the training wrote output into the corpus");
+            System.out.println("failed training: ok, exit status " + status);
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+}
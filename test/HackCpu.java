@@ -0,0 +1,162 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Hack computer for the tests: assembles the text {@link HackAsmWriter} writes and runs it, as the CPU emulator
+ * of the nand2tetris tools would, without screen or keyboard.
+ */
+public class HackCpu {
+    private static final Map<String, Integer> COMP = new HashMap<>();
+    private static final String[] JUMPS = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+    static {
+        // the c1..c6 bits of the ALU, for the forms that read A; the same with M sets the a bit
+        String[][] table = {{"0", "101010"}, {"1", "111111"}, {"-1", "111010"}, {"D", "001100"}, {"A", "110000"},
+                {"!D", "001101"}, {"!A", "110001"}, {"-D", "001111"}, {"-A", "110011"}, {"D+1", "011111"},
+                {"A+1", "110111"}, {"D-1", "001110"}, {"A-1", "110010"}, {"D+A", "000010"}, {"D-A", "010011"},
+                {"A-D", "000111"}, {"D&A", "000000"}, {"D|A", "010101"}};
+        for (String[] entry : table) {
+            int bits = Integer.parseInt(entry[1], 2);
+            COMP.put(entry[0], bits);
+            if (entry[0].contains("A")) {
+                COMP.put(entry[0].replace('A', 'M'), bits | 1 << 6);
+            }
+        }
+    }
+
+    private final short[] rom;
+    private final short[] ram = new short[32768];
+    private short a;
+    private short d;
+    private int pc;
+
+    public HackCpu(String asm) {
+        this.rom = assemble(asm);
+    }
+
+    /**
+     * Runs at most {@code maxSteps} instructions, or until the program jumps to itself forever. Returns the number
+     * of instructions run.
+     */
+    public long run(long maxSteps) {
+        long steps = 0;
+        while (steps < maxSteps && pc < rom.length) {
+            int instruction = rom[pc] & 0xFFFF;
+            steps++;
+            if ((instruction & 0x8000) == 0) {
+                a = (short) instruction;
+                pc++;
+                continue;
+            }
+            int address = a & 0x7FFF;
+            short y = (instruction & 0x1000) != 0 ? ram[address] : a;
+            short result = alu(d, y, instruction >> 6 & 0x3F);
+            int jump = instruction & 0x7;
+            boolean taken = (jump & 4) != 0 && result < 0 || (jump & 2) != 0 && result == 0
+                    || (jump & 1) != 0 && result > 0;
+            // the jump target is A as it was before this instruction
+            int target = a & 0xFFFF;
+            if ((instruction & 0x08) != 0) {
+                ram[address] = result;
+            }
+            if ((instruction & 0x10) != 0) {
+                d = result;
+            }
+            if ((instruction & 0x20) != 0) {
+                a = result;
+            }
+            if (jump == 7 && target == pc - 1 && rom[target] == target) {
+                // '(n) @n 0;JMP' is how a halted program spins
+                break;
+            }
+            pc = taken ? target : pc + 1;
+        }
+        return steps;
+    }
+
+    public short ram(int address) {
+        return ram[address];
+    }
+
+    private static short alu(short x, short y, int c) {
+        int ox = (c & 0x20) != 0 ? 0 : x;
+        if ((c & 0x10) != 0) {
+            ox = ~ox;
+        }
+        int oy = (c & 0x08) != 0 ? 0 : y;
+        if ((c & 0x04) != 0) {
+            oy = ~oy;
+        }
+        int out = (c & 0x02) != 0 ? ox + oy : ox & oy;
+        if ((c & 0x01) != 0) {
+            out = ~out;
+        }
+        return (short) out;
+    }
+
+    private static short[] assemble(String asm) {
+        Map<String, Integer> symbols = new HashMap<>(Map.of("SP", 0, "LCL", 1, "ARG", 2, "THIS", 3, "THAT", 4,
+                "SCREEN", 16384, "KBD", 24576));
+        for (int i = 0; i < 16; i++) {
+            symbols.put("R" + i, i);
+        }
+        String[] lines = asm.split("\n");
+        int[] addressOf = new int[lines.length];
+        int address = 0;
+        for (int i = 0; i < lines.length; i++) {
+            String line = strip(lines[i]);
+            addressOf[i] = address;
+            if (line.startsWith("(")) {
+                symbols.put(line.substring(1, line.length() - 1), address);
+            } else if (!line.isEmpty()) {
+                address++;
+            }
+        }
+
+        short[] rom = new short[address];
+        int nextVariable = 16;
+        for (int i = 0; i < lines.length; i++) {
+            String line = strip(lines[i]);
+            if (line.isEmpty() || line.startsWith("(")) {
+                continue;
+            }
+            if (line.startsWith("@")) {
+                String value = line.substring(1);
+                if (Character.isDigit(value.charAt(0))) {
+                    rom[addressOf[i]] = (short) Integer.parseInt(value);
+                } else {
+                    if (!symbols.containsKey(value)) {
+                        symbols.put(value, nextVariable++);
+                    }
+                    rom[addressOf[i]] = (short) (int) symbols.get(value);
+                }
+                continue;
+            }
+            String dest = "";
+            String comp = line;
+            String jump = "";
+            if (comp.contains("=")) {
+                dest = comp.substring(0, comp.indexOf('='));
+                comp = comp.substring(comp.indexOf('=') + 1);
+            }
+            if (comp.contains(";")) {
+                jump = comp.substring(comp.indexOf(';') + 1);
+                comp = comp.substring(0, comp.indexOf(';'));
+            }
+            Integer bits = COMP.get(comp);
+            int jumpBits = Arrays.asList(JUMPS).indexOf(jump);
+            if (bits == null || jumpBits < 0) {
+                throw new IllegalArgumentException("Cannot assemble line " + (i + 1) + ": " + lines[i]);
+            }
+            int destBits = (dest.contains("A") ? 4 : 0) | (dest.contains("D") ? 2 : 0) | (dest.contains("M") ? 1 : 0);
+            rom[addressOf[i]] = (short) (0xE000 | bits << 6 | destBits << 3 | jumpBits);
+        }
+        return rom;
+    }
+
+    private static String strip(String line) {
+        int comment = line.indexOf("//");
+        return (comment < 0 ? line : line.substring(0, comment)).replace(" ", "").trim();
+    }
+}
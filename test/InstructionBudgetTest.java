@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs every entry of instruction-budgets.txt on the {@link VMEmulator} and fails if a program prints the wrong
+ * output or runs more instructions than its budget, so code generation cannot get slower unnoticed.
+ */
+public class InstructionBudgetTest {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path testDir = Path.of(args[0]);
+        List<String> lines = Files.readAllLines(testDir.resolve("instruction-budgets.txt"));
+        int failures = 0;
+        for (String line : lines) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.trim().split("\\s+");
+            String program = parts[0];
+            long budget = Long.parseLong(parts[1]);
+            CompilerOptions options = new CompilerOptions();
+            for (String option : Arrays.copyOfRange(parts, 2, parts.length)) {
+                if (!options.parse(option)) {
+                    throw new IllegalArgumentException("Unknown compiler option " + option + " in: " + line);
+                }
+            }
+
+            Path dir = testDir.resolve("programs").resolve(program);
+            VMEmulator emulator = new VMEmulator();
+            List<Diagnostic> diagnostics = emulator.loadDirectory(dir, options);
+            Expect.that(diagnostics.isEmpty(), line + ": " + diagnostics);
+            // one instruction more than the budget tells a slowdown from a program that never ends
+            VMEmulator.Profile profile = emulator.run(budget + 1);
+            String expected = Files.readString(dir.resolve("expected-output.txt"));
+
+            String status;
+            if (!profile.isCompleted() || profile.getInstructions() > budget) {
+                status = "FAILED, over budget";
+                failures++;
+            } else if (!profile.getOutput().equals(expected)) {
+                status = "FAILED, printed '" + profile.getOutput() + "' instead of '" + expected + "'";
+                failures++;
+            } else {
+                status = profile.getInstructions() < budget ? "ok, the budget can be lowered" : "ok";
+            }
+            System.out.printf("%-60s %8d / %8d  %s%n", line.substring(0, Math.min(line.length(), 60)),
+                    profile.getInstructions(), budget, status);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " of the budgets failed");
+            System.exit(1);
+        }
+    }
+}
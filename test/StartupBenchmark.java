@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Measures what {@code jackc --train} buys: trains the AppCDS archive, then launches the compiler on programs/Points
+ * again and again, with the JVM defaults, with C1 only, and with C1 and the archive as {@code jackc} launches it, and
+ * prints the median and fastest wall-clock time of each. Run it with {@code test/run.sh StartupBenchmark}.
+ */
+public class StartupBenchmark {
+    private static final int ROUNDS = 11;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path root = Path.of(args[0]).toAbsolutePath().getParent();
+        run(List.of("sh", root.resolve("jackc").toString(), "--train"));
+        Path dir = root.resolve("out/fast-start");
+        String jar = dir.resolve("jack.jar").toString();
+        String java = ProcessHandle.current().info().command().orElse("java");
+
+        // the same launches jackc makes, without the shell around them
+        String[] names = {"JVM defaults", "C1 only", "C1 and AppCDS (jackc)"};
+        List<List<String>> launches = List.of(
+                List.of(java, "-cp", jar, "JackCompiler"),
+                List.of(java, "-XX:TieredStopAtLevel=1", "-cp", jar, "JackCompiler"),
+                List.of(java, "-XX:SharedArchiveFile=" + dir.resolve("jack.jsa"), "-Xshare:auto",
+                        "-XX:TieredStopAtLevel=1", "-cp", jar, "JackCompiler"));
+
+        // the program is compiled in a copy, so its directory gets no output
+        Path work = Files.createTempDirectory("jack-startup");
+        try {
+            try (Stream<Path> files = Files.list(Path.of(args[0], "programs", "Points"))) {
+                for (Path file : files.filter(f -> f.toString().endsWith(".jack")).toList()) {
+                    Files.copy(file, work.resolve(file.getFileName()));
+                }
+            }
+            long[][] times = new long[launches.size()][ROUNDS];
+            // one untimed round first, so every mode starts with the files in the page cache
+            for (int round = -1; round < ROUNDS; round++) {
+                // the modes take turns, so a slower machine affects them alike
+                for (int mode = 0; mode < launches.size(); mode++) {
+                    List<String> command = new ArrayList<>(launches.get(mode));
+                    command.add(work.toString());
+                    long start = System.nanoTime();
+                    run(command);
+                    if (round >= 0) {
+                        times[mode][round] = System.nanoTime() - start;
+                    }
+                }
+            }
+            for (int mode = 0; mode < launches.size(); mode++) {
+                Arrays.sort(times[mode]);
+                System.out.printf("%-22s median %4d ms, fastest %4d ms%n", names[mode],
+                        times[mode][ROUNDS / 2] / 1_000_000, times[mode][0] / 1_000_000);
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(work)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static void run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        byte[] output = process.getInputStream().readAllBytes();
+        if (process.waitFor() != 0) {
+            throw new AssertionError(String.join(" ", command) + " failed:\n" + new String(output));
+        }
+    }
+}
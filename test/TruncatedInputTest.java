@@ -0,0 +1,71 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Compiles classes that end in the middle of a statement or block. Each must give one "Unexpected end of file"
+ * diagnostic at the end of the input, and every prefix of a complete class must fail in bounded time with
+ * positioned diagnostics only.
+ */
+public class TruncatedInputTest {
+    private static final String HEADER = "class Sys {\n function void init() {\n";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<String, String> truncated = Map.of(
+                    HEADER + "  do", "Sys:3:5: Unexpected end of file",
+                    HEADER + "  let", "Sys:3:6: Unexpected end of file",
+                    HEADER + "  while", "Sys:3:8: Unexpected end of file",
+                    HEADER + "  if (true) {", "Sys:3:14: Unexpected end of file",
+                    HEADER + "  return;", "Sys:3:10: Unexpected end of file",
+                    "class Sys {", "Sys:1:12: Unexpected end of file",
+                    "class Sys { function", "Sys:1:21: Unexpected end of file",
+                    "class Sys { static int x;", "Sys:1:26: Unexpected end of file",
+                    HEADER + "  return;\n }\n", "Sys:4:3: Unexpected end of file");
+            for (Map.Entry<String, String> entry : truncated.entrySet()) {
+                List<Diagnostic> diagnostics = compile(executor, entry.getKey());
+                Expect.that(diagnostics.size() == 1 && diagnostics.get(0).toString().equals(entry.getValue()),
+                        "expected " + entry.getValue() + " for\n" + entry.getKey() + "\nbut got " + diagnostics);
+            }
+            System.out.println("truncated statements: ok");
+
+            String complete = HEADER + "  var int i;\n  let i = 0;\n  while (i < 3) { if (i = 1) { do Output.printInt(i); }"
+                    + " else { let i = i + 1; } let i = i + 1; }\n  return;\n }\n}\n";
+            Expect.that(compile(executor, complete).isEmpty(), "the complete class did not compile");
+            for (int length = 0; length < complete.strip().length(); length++) {
+                String prefix = complete.substring(0, length);
+                List<Diagnostic> diagnostics = compile(executor, prefix);
+                Expect.that(!diagnostics.isEmpty(), "no diagnostic for\n" + prefix);
+                for (Diagnostic diagnostic : diagnostics) {
+                    Expect.that(diagnostic.line() > 0, "no position for " + diagnostic + " in\n" + prefix);
+                }
+            }
+            System.out.println("every prefix: ok");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<Diagnostic> compile(ExecutorService executor, String code) throws InterruptedException {
+        Future<BatchCompiler.Result> result = executor.submit(() -> BatchCompiler.compile(BatchCompiler.Source.of("Sys", code)));
+        try {
+            return result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).diagnostics();
+        } catch (TimeoutException e) {
+            // the daemon thread is left spinning, the JVM exits anyway
+            throw new AssertionError("no result after " + TIMEOUT_SECONDS + " s for\n" + code);
+        } catch (ExecutionException e) {
+            throw new AssertionError("failed on\n" + code, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many small classes from disk into a temporary directory, with a fixed pool of one thread per core, with
+ * {@link CompilationPipeline} and with {@link VirtualThreadCompiler}, and prints the time each takes. The sources are
+ * read once as they are, and once with a delay on every open, which stands in for a slow network filesystem.
+ */
+public class VirtualThreadBenchmark {
+    private static final int FILES = 2000;
+    private static final int[] OPEN_DELAYS_MS = {0, 2};
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        CompilerOptions options = new CompilerOptions();
+        Path dir = Files.createTempDirectory("jack-virtual-threads");
+        try {
+            List<Path> files = new ArrayList<>();
+            for (int i = 0; i < FILES; i++) {
+                Path file = dir.resolve("C" + i + ".jack");
+                Files.writeString(file, "class C" + i + " {\n    field int x;\n"
+                        + "    method int f(int a) { var int i; let i = 0; while (i < a) { let x = x + (i * 2); let i = i + 1; } return x; }\n"
+                        + "    function void g() { do Output.printInt(C" + i + ".h(3)); return; }\n"
+                        + "    function int h(int n) { if (n < 2) { return n; } return C" + i + ".h(n - 1) + 1; }\n}\n");
+                files.add(file);
+            }
+            Path out = Files.createDirectory(dir.resolve("output"));
+            CompilationPipeline.Sink sink = result -> Files.writeString(out.resolve(result.name() + ".vm"), result.output());
+
+            System.out.printf("%d files, %d cores%n", FILES, parallelism);
+            for (int delay : OPEN_DELAYS_MS) {
+                List<BatchCompiler.Source> sources = files.stream().map(file -> slow(file, delay)).toList();
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    fixedPool(parallelism, options, sources, sink);
+                    long fixed = System.nanoTime();
+                    new CompilationPipeline(parallelism, options).run(sources, sink);
+                    long pipeline = System.nanoTime();
+                    new VirtualThreadCompiler(parallelism, options).run(sources, sink);
+                    long virtual = System.nanoTime();
+                    System.out.printf("open delay %d ms: fixed pool %d ms, pipeline %d ms, virtual threads %d ms%n",
+                            delay, (fixed - start) / 1_000_000, (pipeline - fixed) / 1_000_000,
+                            (virtual - pipeline) / 1_000_000);
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    // each task reads, compiles and writes one file, like the virtual threads but on one platform thread per core
+    private static void fixedPool(int parallelism, CompilerOptions options, List<BatchCompiler.Source> sources,
+                                  CompilationPipeline.Sink sink) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<BatchCompiler.Result>> futures = new ArrayList<>();
+            for (BatchCompiler.Source source : sources) {
+                futures.add(executor.submit(() -> CompilationPipeline.write(sink, BatchCompiler.compile(source, options))));
+            }
+            for (Future<BatchCompiler.Result> future : futures) {
+                if (!future.get().isSuccess()) {
+                    throw new AssertionError(future.get().diagnostics());
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new AssertionError(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static BatchCompiler.Source slow(Path file, int delayMs) {
+        BatchCompiler.Source source = BatchCompiler.Source.of(file);
+        return new BatchCompiler.Source() {
+            @Override
+            public String name() {
+                return source.name();
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                return source.open();
+            }
+        };
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/sh
+# Compiles src and test into out/test and runs the given test or benchmark classes, every *Test class by default,
+# e.g. 'test/run.sh' or 'test/run.sh ExpressionNestingBenchmark'. Each class gets the test directory as its argument
+# and exits with a nonzero status when it fails. Everything in test, including the shared Expect assertion, is
+# compiled once, before the first class runs.
+set -e
+
+root=$(cd "$(dirname "$0")/.." && pwd)
+classes="$root/out/test"
+bin="${JAVA_HOME:+$JAVA_HOME/bin/}"
+
+rm -rf "$classes"
+mkdir -p "$classes"
+"${bin}javac" -nowarn -d "$classes" "$root"/src/*.java "$root"/test/*.java
+
+if [ $# -eq 0 ]; then
+    set -- $(cd "$root/test" && ls *Test.java 2>/dev/null | sed 's/\.java$//')
+fi
+status=0
+for test in "$@"; do
+    echo "== $test"
+    "${bin}java" -cp "$classes" "$test" "$root/test" || status=1
+done
+exit $status